@@ -4,64 +4,159 @@
 
 #define NUM_ROW 8
 
-#define NUM_LEDS NUM_MATRIX * NUM_ROW * NUM_ROW
+#define NUM_LEDS (NUM_MATRIX * NUM_ROW * NUM_ROW)
 
 #define DATA_PIN 3
 
+// Must match RGB.BAUD_RATE
+#define BAUD_RATE 115200
+
+// Framing (see Pattern.toFrame): sync, type, length, payload, checksum
+#define SYNC 0xA5
+#define MAX_PAYLOAD 64
+
+// Pattern types (see Pattern.java)
+#define FILL 0
+#define SLIDE 1
+#define SEGMENTS 2
+#define BLINK 3
+#define CHASE 4
+#define PROGRESS 5
+
 CRGB leds[NUM_LEDS];
 
 void setup() {
   FastLED.addLeds<WS2812, DATA_PIN, GRB>(leds, NUM_LEDS);  // GRB ordering is typical
-  Serial.begin(9600);
+  Serial.begin(BAUD_RATE);
 }
 
-CRGB color = CRGB::Blue;
+// Active pattern
+uint8_t type = FILL;
+uint8_t payload[MAX_PAYLOAD];
+uint8_t length = 3;
 
-uint8_t buffer[3];
+// Parser state
+uint8_t state = 0;
+uint8_t frameType = 0;
+uint8_t frameLength = 0;
+uint8_t frameIndex = 0;
+uint8_t frameSum = 0;
+uint8_t buffer[MAX_PAYLOAD];
 
-uint8_t index = 0;
+// Animation state
+int led = 0;
+unsigned long lastStep = 0;
+bool dirty = true;
+bool blinkOn = false;
 
-uint8_t mode = 0;
+CRGB color(uint8_t offset) {
+  return CRGB(payload[offset], payload[offset + 1], payload[offset + 2]);
+}
 
-int led = 0;
+void receive(uint8_t input) {
+  switch (state) {
+    case 0:
+      // Wait for sync
+      if (input == SYNC)
+        state = 1;
+      break;
+    case 1:
+      frameType = input;
+      frameSum = input;
+      state = 2;
+      break;
+    case 2:
+      frameLength = input;
+      frameSum += input;
+      frameIndex = 0;
+      state = frameLength > MAX_PAYLOAD ? 0 : (frameLength == 0 ? 4 : 3);
+      break;
+    case 3:
+      buffer[frameIndex++] = input;
+      frameSum += input;
+      if (frameIndex == frameLength)
+        state = 4;
+      break;
+    case 4:
+      // Checksum - the whole frame sums to zero
+      // A repeat of the active pattern (the RIO resends it periodically) keeps the animation going
+      if ((uint8_t) (frameSum + input) == 0 && !(frameType == type && frameLength == length && memcmp(payload, buffer, length) == 0)) {
+        type = frameType;
+        length = frameLength;
+        memcpy(payload, buffer, length);
+        led = 0;
+        dirty = true;
+      }
+      state = 0;
+      break;
+  }
+}
 
-void loop() {
-  while (Serial.available() > 0) {
-    // Read last
-    uint8_t input = Serial.read();
-    if (input < 2) {
-      // Update color
-      if (index == 3)
-        color = CRGB((buffer[0] - 2) * 8, (buffer[1] - 2) * 8, (buffer[2] - 2) * 8);
-      // Change mode
-      mode = input;
-      // Reset index
-      index = 0;
-    } else {
-      // Write buffer
-      if (index < 3)
-        buffer[index++] = input;
+void render() {
+  unsigned long now = millis();
+  if (type == FILL) {
+    if (dirty) {
+      fill_solid(leds, NUM_LEDS, color(0));
+      FastLED.show();
     }
-  }
-  if (mode == 0) {
-    for (int i = 0; i < NUM_LEDS; i++) {
-      leds[i] = color;
+  } else if (type == SLIDE) {
+    if (now - lastStep >= 20) {
+      lastStep = now;
+      if (led < NUM_LEDS) {
+        for (uint8_t a = 0; a < NUM_ROW; ++a) {
+          leds[led + a] = color(0);
+        }
+        led += NUM_ROW;
+      } else {
+        fill_solid(leds, NUM_LEDS, CRGB::Black);
+        led = 0;
+      }
+      FastLED.show();
     }
-    FastLED.show();
-  } else if (mode == 1) {
-    if (led < NUM_LEDS) {
-      for (uint8_t a = 0; a < NUM_ROW; ++a) {
-        leds[led + a] = color;
+  } else if (type == SEGMENTS) {
+    if (dirty && payload[0] > 0) {
+      int size = NUM_LEDS / payload[0];
+      for (int i = 0; i < NUM_LEDS; i++) {
+        int segment = min(i / size, payload[0] - 1);
+        leds[i] = color(1 + segment * 3);
       }
-      led += NUM_ROW;
       FastLED.show();
-    } else {
-      for (led = 0; led < NUM_LEDS; ++led) {
-        leds[led] = CRGB::Black;
+    }
+  } else if (type == BLINK) {
+    unsigned long period = max((unsigned long) payload[3] * 10, 20UL);
+    bool on = (now % period) < period / 2;
+    if (dirty || on != blinkOn) {
+      blinkOn = on;
+      fill_solid(leds, NUM_LEDS, on ? color(0) : CRGB::Black);
+      FastLED.show();
+    }
+  } else if (type == CHASE) {
+    unsigned long step = max((unsigned long) payload[7] * 10, 10UL);
+    if (now - lastStep >= step) {
+      lastStep = now;
+      fill_solid(leds, NUM_LEDS, color(3));
+      for (uint8_t a = 0; a < payload[6]; ++a) {
+        leds[(led + a) % NUM_LEDS] = color(0);
+      }
+      led = (led + 1) % NUM_LEDS;
+      FastLED.show();
+    }
+  } else if (type == PROGRESS) {
+    if (dirty) {
+      int filled = ((long) NUM_LEDS * payload[6]) / 255;
+      for (int i = 0; i < NUM_LEDS; i++) {
+        leds[i] = i < filled ? color(0) : color(3);
       }
       FastLED.show();
-      led = 0;
     }
   }
-  delay(20);
-}
\ No newline at end of file
+  dirty = false;
+}
+
+void loop() {
+  while (Serial.available() > 0) {
+    receive(Serial.read());
+  }
+  render();
+  delay(5);
+}
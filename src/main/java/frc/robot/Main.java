@@ -15,6 +15,11 @@ public final class Main {
 
         private FRCRobot robot;
 
+        private Robot() {
+            // Loop at the scheduler's base rate
+            super(Kobe.PERIOD);
+        }
+
         @Override
         public void robotInit() {
             robot = new Kobe();
@@ -0,0 +1,196 @@
+package frc.robot.base.auto;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+abstract class Node {
+
+    protected String label;
+
+    protected Node(String label) {
+        this.label = label;
+    }
+
+    abstract void start(double time);
+
+    // Returns true once done
+    abstract boolean update(double time) throws Exception;
+
+    abstract void end(double time, boolean interrupted);
+
+    // A node is "name parameters", {"run": "name parameters", "timeout": seconds}, an array (sequential) or {"<group>": [nodes]}
+    static Node parse(Object json, String label, Routines routines) throws Exception {
+        if (json instanceof String)
+            return leaf((String) json, 0, label, routines);
+        if (json instanceof JSONArray)
+            return group(Group.Kind.Sequential, (JSONArray) json, label, routines);
+        JSONObject object = (JSONObject) json;
+        if (object.has("run"))
+            return leaf(object.getString("run"), object.optDouble("timeout", 0), label, routines);
+        for (Group.Kind kind : Group.Kind.values())
+            if (object.has(kind.key))
+                return group(kind, object.getJSONArray(kind.key), label, routines);
+        throw new IllegalArgumentException("Unknown routine node " + object);
+    }
+
+    private static Node leaf(String run, double timeout, String label, Routines routines) throws Exception {
+        run = run.trim();
+        int space = run.indexOf(' ');
+        String name = space < 0 ? run : run.substring(0, space);
+        String parameter = space < 0 ? "" : run.substring(space + 1).trim();
+        return new Leaf(label.isEmpty() ? name : label + "-" + name, routines, routines.create(name, parameter), timeout);
+    }
+
+    private static Node group(Group.Kind kind, JSONArray array, String label, Routines routines) throws Exception {
+        ArrayList<Node> children = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++)
+            children.add(parse(array.get(i), label.isEmpty() ? String.valueOf(i) : label + "." + i, routines));
+        if (kind == Group.Kind.Deadline && children.isEmpty())
+            throw new IllegalArgumentException("Deadline group without a deadline");
+        return new Group(label, kind, children);
+    }
+
+    static class Leaf extends Node {
+
+        private Routines routines;
+        private Routines.Step step;
+        private double timeout;
+
+        private double startTime;
+        private long maximumNanos;
+
+        private Leaf(String label, Routines routines, Routines.Step step, double timeout) {
+            super(label);
+            this.routines = routines;
+            this.step = step;
+            this.timeout = timeout;
+        }
+
+        @Override
+        void start(double time) {
+            startTime = time;
+            maximumNanos = 0;
+        }
+
+        @Override
+        boolean update(double time) throws Exception {
+            long start = System.nanoTime();
+            boolean done = step.update();
+            maximumNanos = Math.max(maximumNanos, System.nanoTime() - start);
+            if (!done && timeout > 0 && time - startTime >= timeout) {
+                step.end(true);
+                routines.report(label, "timeout", time - startTime, maximumNanos);
+                return true;
+            }
+            if (done) {
+                step.end(false);
+                routines.report(label, "done", time - startTime, maximumNanos);
+            }
+            return done;
+        }
+
+        @Override
+        void end(double time, boolean interrupted) {
+            // Only called for interruptions, finishing ends the step from update
+            if (interrupted) {
+                step.end(true);
+                routines.report(label, "interrupted", time - startTime, maximumNanos);
+            }
+        }
+    }
+
+    static class Group extends Node {
+
+        private Kind kind;
+        private ArrayList<Node> children;
+        private boolean[] running;
+        private int index;
+
+        private Group(String label, Kind kind, ArrayList<Node> children) {
+            super(label);
+            this.kind = kind;
+            this.children = children;
+            this.running = new boolean[children.size()];
+        }
+
+        @Override
+        void start(double time) {
+            index = 0;
+            if (kind == Kind.Sequential) {
+                if (!children.isEmpty())
+                    begin(0, time);
+            } else {
+                for (int i = 0; i < children.size(); i++)
+                    begin(i, time);
+            }
+        }
+
+        @Override
+        boolean update(double time) throws Exception {
+            if (kind == Kind.Sequential) {
+                // Steps that finish right away do not cost a cycle each
+                while (index < children.size()) {
+                    if (!children.get(index).update(time))
+                        return false;
+                    running[index++] = false;
+                    if (index < children.size())
+                        begin(index, time);
+                }
+                return true;
+            }
+            boolean all = true;
+            for (int i = 0; i < children.size(); i++) {
+                if (!running[i])
+                    continue;
+                if (children.get(i).update(time)) {
+                    running[i] = false;
+                    // A race ends with its first finisher, a deadline group with its first child
+                    if (kind == Kind.Race || (kind == Kind.Deadline && i == 0)) {
+                        end(time, true);
+                        return true;
+                    }
+                } else {
+                    all = false;
+                }
+            }
+            return all;
+        }
+
+        @Override
+        void end(double time, boolean interrupted) {
+            if (!interrupted)
+                return;
+            for (int i = 0; i < children.size(); i++) {
+                if (running[i]) {
+                    running[i] = false;
+                    children.get(i).end(time, true);
+                }
+            }
+        }
+
+        private void begin(int child, double time) {
+            running[child] = true;
+            children.get(child).start(time);
+        }
+
+        enum Kind {
+            Sequential("sequential"),
+            Parallel("parallel"),
+            Race("race"),
+            Deadline("deadline");
+
+            private String key;
+
+            Kind(String key) {
+                this.key = key;
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package frc.robot.base.auto;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import frc.robot.base.utils.Clock;
+import frc.robot.base.utils.Logger;
+import frc.robot.base.utils.Signature;
+import org.json.JSONTokener;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Routines extends FRCModule {
+
+    // Selected on load if it exists
+    private static final String DEFAULT_ROUTINE = "default";
+
+    private Logger logger = new Logger("routines");
+
+    private HashMap<String, Action> actions = new HashMap<>();
+
+    // Routine sources by name, swapped as a whole when loaded
+    private volatile Map<String, Object> routines = new TreeMap<>();
+    private volatile String selected = null;
+
+    private Node root = null;
+    private String state = "idle";
+    private double startTime = 0;
+
+    public Routines() {
+        super("routines");
+
+        // Built in actions
+        action("wait", parameter -> {
+            double seconds = new Signature("wait").number("seconds").require(parameter).getNumber(0);
+            if (!(seconds > 0) || Double.isInfinite(seconds))
+                throw new IllegalArgumentException("wait needs a positive, finite number of seconds");
+            return new Step() {
+                private double end = -1;
+
+                @Override
+                public boolean update() {
+                    if (end < 0)
+                        end = Clock.cycleSeconds() + seconds;
+                    return Clock.cycleSeconds() >= end;
+                }
+            };
+        });
+
+        register("select", new Function() {
+
+            private Signature signature = new Signature("select").word("routine");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                String name = signature.getWord(0);
+                if (!routines.containsKey(name))
+                    return Result.notFinished("Unknown routine");
+                selected = name;
+                set("selected", name);
+                return Result.finished("Selected");
+            }
+        });
+
+        register("list", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                return Result.finished(String.join(" ", routines.keySet()));
+            }
+        });
+    }
+
+    // Actions must be declared before loading, create() must only parse (it also runs when validating)
+    public void action(String name, Action action) {
+        actions.put(name, action);
+    }
+
+    // Loads and validates every .json routine in the directory (an array is a sequential group)
+    public void load(File directory) {
+        TreeMap<String, Object> loaded = new TreeMap<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName().substring(0, file.getName().length() - ".json".length());
+                try (Reader reader = new FileReader(file)) {
+                    Object json = new JSONTokener(reader).nextValue();
+                    // Validate
+                    Node.parse(json, "", this);
+                    loaded.put(name, json);
+                } catch (Exception exception) {
+                    logger.log(Logger.Level.Error, "Routine " + name + " failed to load: " + exception.toString());
+                }
+            }
+        }
+        routines = loaded;
+        if (selected == null && loaded.containsKey(DEFAULT_ROUTINE))
+            selected = DEFAULT_ROUTINE;
+    }
+
+    // Starts the selected routine (called from autonomousSetup, outside the loop)
+    public boolean start() {
+        stop();
+        String name = selected;
+        if (name == null || !routines.containsKey(name))
+            return false;
+        try {
+            root = Node.parse(routines.get(name), "", this);
+        } catch (Exception exception) {
+            logger.log(Logger.Level.Error, "Routine " + name + " failed to start: " + exception.toString());
+            return false;
+        }
+        startTime = Clock.cycleSeconds();
+        root.start(startTime);
+        state = "running";
+        set("routine", name);
+        set("state", state);
+        return true;
+    }
+
+    public boolean isRunning() {
+        return root != null;
+    }
+
+    // Called once per cycle while running
+    public void update() {
+        if (root == null)
+            return;
+        double time = Clock.cycleSeconds();
+        try {
+            if (root.update(time)) {
+                root = null;
+                state = "done";
+            }
+        } catch (Exception exception) {
+            logger.log(Logger.Level.Error, "Routine failed: " + exception.toString());
+            root.end(time, true);
+            root = null;
+            state = "failed";
+        }
+        set("state", state);
+        set("elapsed", String.valueOf(time - startTime));
+    }
+
+    // Interrupts whatever is running
+    public void stop() {
+        if (root != null) {
+            root.end(Clock.cycleSeconds(), true);
+            root = null;
+            state = "stopped";
+            set("state", state);
+        }
+    }
+
+    Step create(String name, String parameter) throws Exception {
+        Action action = actions.get(name);
+        if (action == null)
+            throw new IllegalArgumentException("Unknown action " + name);
+        return action.create(parameter);
+    }
+
+    void report(String label, String result, double seconds, long maximumNanos) {
+        set(label + "-result", result);
+        set(label + "-seconds", String.valueOf(seconds));
+        set(label + "-compute", String.valueOf(maximumNanos / 1e6));
+        logger.log(Logger.Level.Info, label + " " + result + " after " + seconds + "s (compute " + maximumNanos / 1e6 + "ms)");
+    }
+
+    public interface Action {
+        Step create(String parameter) throws Exception;
+    }
+
+    public interface Step {
+        // Called every cycle, returns true once done
+        boolean update() throws Exception;
+
+        default void end(boolean interrupted) {
+        }
+    }
+}
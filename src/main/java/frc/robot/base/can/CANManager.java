@@ -0,0 +1,186 @@
+package frc.robot.base.can;
+
+import com.ctre.phoenix.ErrorCode;
+import com.ctre.phoenix.motorcontrol.StatusFrameEnhanced;
+import com.ctre.phoenix.motorcontrol.can.TalonSRX;
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ctre.phoenix.sensors.PigeonIMU;
+import com.ctre.phoenix.sensors.PigeonIMU_StatusFrame;
+import com.revrobotics.CANSparkMax;
+import com.revrobotics.CANSparkMaxLowLevel;
+import edu.wpi.first.hal.can.CANStatus;
+import edu.wpi.first.wpilibj.RobotController;
+import frc.robot.base.utils.Clock;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class CANManager extends FRCModule {
+
+    // Period for frames nobody reads
+    private static final int UNUSED_PERIOD = 255;
+    private static final int TIMEOUT = 10;
+
+    // Bus statistics are read this often (s), whatever rate update() runs at
+    private static final double STATISTICS_PERIOD = 0.5;
+
+    private ArrayList<Device> devices = new ArrayList<>();
+
+    private double lastStatistics = -STATISTICS_PERIOD;
+    private double utilization = 0;
+    private double maximumUtilization = 0;
+
+    public CANManager() {
+        super("can");
+    }
+
+    public Device talon(String name, TalonSRX talon) {
+        Device device = new Device(name, talon, null, null);
+        devices.add(device);
+        return device;
+    }
+
+    public Device spark(String name, CANSparkMax spark) {
+        Device device = new Device(name, null, spark, null);
+        devices.add(device);
+        return device;
+    }
+
+    public Device pigeon(String name, PigeonIMU pigeon) {
+        Device device = new Device(name, null, null, pigeon);
+        devices.add(device);
+        return device;
+    }
+
+    // Sets every declared device's status frame periods to match what is actually read
+    public void apply() {
+        for (Device device : devices) {
+            long start = System.nanoTime();
+            if (device.talon != null) {
+                TalonSRX talon = device.talon;
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_1_General, device.period(Signal.Output), TIMEOUT);
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_2_Feedback0, device.period(Signal.Position, Signal.Velocity, Signal.Current), TIMEOUT);
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_3_Quadrature, device.period(Signal.Quadrature), TIMEOUT);
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_4_AinTempVbat, device.period(Signal.Analog, Signal.Temperature, Signal.BusVoltage), TIMEOUT);
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_8_PulseWidth, device.period(Signal.PulseWidth), TIMEOUT);
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_10_Targets, device.period(Signal.Targets), TIMEOUT);
+                talon.setStatusFramePeriod(StatusFrameEnhanced.Status_13_Base_PIDF0, device.period(Signal.ClosedLoop), TIMEOUT);
+            } else if (device.pigeon != null) {
+                PigeonIMU pigeon = device.pigeon;
+                pigeon.setStatusFramePeriod(PigeonIMU_StatusFrame.CondStatus_9_SixDeg_YPR, device.period(Signal.Orientation), TIMEOUT);
+                pigeon.setStatusFramePeriod(PigeonIMU_StatusFrame.BiasedStatus_2_Gyro, device.period(Signal.AngularVelocity), TIMEOUT);
+            } else {
+                CANSparkMax spark = device.spark;
+                spark.setPeriodicFramePeriod(CANSparkMaxLowLevel.PeriodicFrame.kStatus0, device.period(Signal.Output));
+                spark.setPeriodicFramePeriod(CANSparkMaxLowLevel.PeriodicFrame.kStatus1, device.period(Signal.Velocity, Signal.Current, Signal.Temperature, Signal.BusVoltage));
+                spark.setPeriodicFramePeriod(CANSparkMaxLowLevel.PeriodicFrame.kStatus2, device.period(Signal.Position));
+            }
+            set(device.name + "-apply-millis", String.valueOf((System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    // Called from the telemetry task, after the subsystems read their signals
+    public void update() {
+        // Stale frames - read a declared signal and check that read's own error, right after it on this thread
+        for (Device device : devices) {
+            ErrorCode error = device.probe();
+            if (error == ErrorCode.SigNotUpdated || error == ErrorCode.RxTimeout || error == ErrorCode.CAN_MSG_STALE)
+                device.stale++;
+        }
+        double time = Clock.cycleSeconds();
+        if (time - lastStatistics < STATISTICS_PERIOD)
+            return;
+        lastStatistics = time;
+        // Bus utilization
+        CANStatus status = RobotController.getCANStatus();
+        utilization = status.percentBusUtilization;
+        maximumUtilization = Math.max(maximumUtilization, utilization);
+        set("utilization", String.valueOf(utilization));
+        set("maximum-utilization", String.valueOf(maximumUtilization));
+        set("bus-off", String.valueOf(status.busOffCount));
+        set("tx-full", String.valueOf(status.txFullCount));
+        set("rx-errors", String.valueOf(status.receiveErrorCount));
+        set("tx-errors", String.valueOf(status.transmitErrorCount));
+        for (Device device : devices)
+            set(device.name + "-stale", String.valueOf(device.stale));
+    }
+
+    public double getUtilization() {
+        return utilization;
+    }
+
+    public enum Signal {
+        Output, // Applied output, faults, limit switches
+        Position,
+        Velocity,
+        Current,
+        Quadrature,
+        PulseWidth,
+        Analog,
+        Temperature,
+        BusVoltage,
+        ClosedLoop, // Closed loop error
+        Targets, // Motion profile targets
+        Orientation, // Pigeon yaw, pitch and roll
+        AngularVelocity // Pigeon raw gyro
+    }
+
+    public static class Device {
+
+        private String name;
+        private TalonSRX talon;
+        private CANSparkMax spark;
+        private PigeonIMU pigeon;
+        private EnumMap<Signal, Integer> rates = new EnumMap<>(Signal.class);
+        private long stale = 0;
+        private double[] orientation = new double[3];
+
+        private Device(String name, TalonSRX talon, CANSparkMax spark, PigeonIMU pigeon) {
+            this.name = name;
+            this.talon = talon;
+            this.spark = spark;
+            this.pigeon = pigeon;
+        }
+
+        // Declares a signal the code reads, and how often (milliseconds)
+        public Device signal(Signal signal, int periodMillis) {
+            rates.put(signal, Math.min(periodMillis, rates.getOrDefault(signal, UNUSED_PERIOD)));
+            return this;
+        }
+
+        // Error of a fresh status read (the last error of whatever call came before says nothing about the frames)
+        private ErrorCode probe() {
+            if (pigeon != null) {
+                if (rates.containsKey(Signal.Orientation))
+                    return pigeon.getYawPitchRoll(orientation);
+                if (rates.containsKey(Signal.AngularVelocity))
+                    return pigeon.getRawGyro(orientation);
+                return ErrorCode.OK;
+            }
+            if (talon == null)
+                return ErrorCode.OK;
+            if (rates.containsKey(Signal.Position) || rates.containsKey(Signal.Velocity) || rates.containsKey(Signal.Current)) {
+                talon.getSelectedSensorPosition();
+            } else if (rates.containsKey(Signal.Output)) {
+                talon.getMotorOutputPercent();
+            } else if (rates.containsKey(Signal.Analog) || rates.containsKey(Signal.Temperature) || rates.containsKey(Signal.BusVoltage)) {
+                talon.getBusVoltage();
+            } else {
+                return ErrorCode.OK;
+            }
+            return talon.getLastError();
+        }
+
+        private int period(Signal... signals) {
+            int period = UNUSED_PERIOD;
+            for (Signal signal : signals)
+                period = Math.min(period, rates.getOrDefault(signal, UNUSED_PERIOD));
+            return period;
+        }
+    }
+}
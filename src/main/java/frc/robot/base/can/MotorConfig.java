@@ -0,0 +1,107 @@
+package frc.robot.base.can;
+
+import com.ctre.phoenix.ParamEnum;
+import com.ctre.phoenix.motorcontrol.FeedbackDevice;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class MotorConfig {
+
+    // Persistent Talon parameters, written only when they differ from what the device holds
+    private ArrayList<Parameter> parameters = new ArrayList<>();
+
+    public MotorConfig() {
+        // Same defaults the old setup wrote on every boot
+        output(0, 0, 1, -1);
+    }
+
+    public MotorConfig sensor(FeedbackDevice device) {
+        return put(ParamEnum.eFeedbackSensorType, 0, device.value);
+    }
+
+    public MotorConfig output(double nominalForward, double nominalReverse, double peakForward, double peakReverse) {
+        put(ParamEnum.eNominalPosOutput, 0, nominalForward);
+        put(ParamEnum.eNominalNegOutput, 0, nominalReverse);
+        put(ParamEnum.ePeakPosOutput, 0, peakForward);
+        return put(ParamEnum.ePeakNegOutput, 0, peakReverse);
+    }
+
+    public MotorConfig gains(double kP, double kI, double kD, double kF) {
+        put(ParamEnum.eProfileParamSlot_P, 0, kP);
+        put(ParamEnum.eProfileParamSlot_I, 0, kI);
+        put(ParamEnum.eProfileParamSlot_D, 0, kD);
+        return put(ParamEnum.eProfileParamSlot_F, 0, kF);
+    }
+
+    public ArrayList<Parameter> getParameters() {
+        return parameters;
+    }
+
+    // FNV-1a over the parameters, stable between boots (0 is what a factory-default device holds)
+    public int hash() {
+        int hash = 0x811C9DC5;
+        for (Parameter parameter : parameters) {
+            hash = mix(hash, parameter.parameter.value);
+            hash = mix(hash, parameter.ordinal);
+            long bits = Double.doubleToLongBits(parameter.value);
+            hash = mix(hash, (int) bits);
+            hash = mix(hash, (int) (bits >>> 32));
+        }
+        return hash == 0 ? 1 : hash;
+    }
+
+    private MotorConfig put(ParamEnum parameter, int ordinal, double value) {
+        // Later declarations replace earlier ones
+        for (Parameter existing : parameters) {
+            if (existing.parameter == parameter && existing.ordinal == ordinal) {
+                existing.value = value;
+                return this;
+            }
+        }
+        parameters.add(new Parameter(parameter, ordinal, value));
+        return this;
+    }
+
+    private static int mix(int hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    public static class Parameter {
+
+        private ParamEnum parameter;
+        private int ordinal;
+        private double value;
+
+        private Parameter(ParamEnum parameter, int ordinal, double value) {
+            this.parameter = parameter;
+            this.ordinal = ordinal;
+            this.value = value;
+        }
+
+        public ParamEnum getParameter() {
+            return parameter;
+        }
+
+        public int getOrdinal() {
+            return ordinal;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        // Gains are stored as fixed point on the device, so the read back value is not exact
+        public boolean matches(double value) {
+            return Math.abs(value - this.value) <= 1e-6 + 1e-3 * Math.abs(this.value);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package frc.robot.base.can;
+
+import com.ctre.phoenix.ErrorCode;
+import com.ctre.phoenix.motorcontrol.can.TalonSRX;
+import com.ga2230.shleam.advanced.frc.FRCModule;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class MotorConfigurator extends FRCModule {
+
+    // Custom parameter slot holding the hash of the last configuration written to the device
+    private static final int HASH_SLOT = 0;
+    private static final int TIMEOUT = 30;
+
+    private ArrayList<Device> devices = new ArrayList<>();
+
+    public MotorConfigurator() {
+        super("motors");
+    }
+
+    public void talon(String name, TalonSRX talon, MotorConfig config) {
+        devices.add(new Device(name, talon, config));
+    }
+
+    // Brings every declared device to its configuration, skipping devices that already hold it
+    public void apply() {
+        long start = System.nanoTime();
+        for (Device device : devices)
+            configure(device);
+        set("millis", String.valueOf((System.nanoTime() - start) / 1e6));
+    }
+
+    // Called whenever a persistent parameter is changed outside of this class (e.g. by tuning)
+    public static void invalidate(TalonSRX talon) {
+        talon.configSetCustomParam(0, HASH_SLOT, 0);
+    }
+
+    private void configure(Device device) {
+        long start = System.nanoTime();
+        TalonSRX talon = device.talon;
+        int hash = device.config.hash();
+        int stored = talon.configGetCustomParam(HASH_SLOT, TIMEOUT);
+        String state;
+        int written = 0;
+        if (talon.getLastError() == ErrorCode.OK && stored == hash) {
+            state = "cached";
+        } else {
+            // Write only what differs
+            ArrayList<MotorConfig.Parameter> changed = new ArrayList<>();
+            for (MotorConfig.Parameter parameter : device.config.getParameters()) {
+                if (!matches(talon, parameter)) {
+                    talon.configSetParameter(parameter.getParameter(), parameter.getValue(), 0, parameter.getOrdinal(), TIMEOUT);
+                    changed.add(parameter);
+                }
+            }
+            written = changed.size();
+            // Verify by reading back
+            boolean verified = true;
+            for (MotorConfig.Parameter parameter : changed)
+                verified &= matches(talon, parameter);
+            if (verified) {
+                talon.configSetCustomParam(hash, HASH_SLOT, TIMEOUT);
+                state = "written";
+            } else {
+                // No hash, so the next boot tries again
+                state = "failed";
+                log("Configuration of " + device.name + " failed verification");
+            }
+        }
+        // Not a configuration, but the old setup always did it
+        talon.setSelectedSensorPosition(0);
+        set(device.name + "-state", state);
+        set(device.name + "-written", String.valueOf(written));
+        set(device.name + "-millis", String.valueOf((System.nanoTime() - start) / 1e6));
+    }
+
+    private static boolean matches(TalonSRX talon, MotorConfig.Parameter parameter) {
+        double value = talon.configGetParameter(parameter.getParameter(), parameter.getOrdinal(), TIMEOUT);
+        return talon.getLastError() == ErrorCode.OK && parameter.matches(value);
+    }
+
+    private static class Device {
+
+        private String name;
+        private TalonSRX talon;
+        private MotorConfig config;
+
+        private Device(String name, TalonSRX talon, MotorConfig config) {
+            this.name = name;
+            this.talon = talon;
+            this.config = config;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package frc.robot.base.control;
+
+import frc.robot.base.utils.General;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class FiringSolver {
+
+    private static final double GRAVITY = 9.81;
+
+    // Time from solving to the ball leaving the shooter (command, spin-up and feed latency)
+    private static final double LATENCY = 0.1;
+
+    // Time of flight iterations (the virtual target moves by the robot's velocity times the time of flight)
+    private static final int ITERATIONS = 8;
+    private static final double TIME_TOLERANCE = 0.001;
+
+    private double targetX, targetY, targetHeight;
+
+    // Launch limits - elevation (degrees) and flywheel surface velocity (m/s)
+    private double minimumElevation, maximumElevation;
+    private double maximumVelocity;
+
+    // Ball exit velocity over flywheel surface velocity (the ball rolls against the hood)
+    private double efficiency;
+
+    // Solution
+    private boolean valid = false;
+    private double turretAngle, elevation, flywheelVelocity, timeOfFlight, distance;
+
+    public FiringSolver(double minimumElevation, double maximumElevation, double maximumVelocity, double efficiency) {
+        this.minimumElevation = minimumElevation;
+        this.maximumElevation = maximumElevation;
+        this.maximumVelocity = maximumVelocity;
+        this.efficiency = efficiency;
+    }
+
+    // Target position (field meters) and height above the shooter's exit
+    public void setTarget(double x, double y, double height) {
+        this.targetX = x;
+        this.targetY = y;
+        this.targetHeight = height;
+    }
+
+    // Pose in field meters and degrees, chassis velocity in m/s and rad/s. Returns whether a solution was found
+    public boolean solve(double x, double y, double heading, double linear, double angular) {
+        // Where the robot will be when the ball leaves
+        double headingRadians = Math.toRadians(heading);
+        double middle = headingRadians + angular * LATENCY / 2;
+        x += linear * LATENCY * Math.cos(middle);
+        y += linear * LATENCY * Math.sin(middle);
+        headingRadians += angular * LATENCY;
+        // Field velocity the ball inherits from the robot (the turret sits on the center of rotation)
+        double velocityX = linear * Math.cos(headingRadians);
+        double velocityY = linear * Math.sin(headingRadians);
+        // Aim at a virtual target, offset against the robot's velocity for the time of flight
+        double time = 0;
+        double deltaX = targetX - x, deltaY = targetY - y;
+        valid = false;
+        for (int i = 0; i < ITERATIONS; i++) {
+            deltaX = targetX - velocityX * time - x;
+            deltaY = targetY - velocityY * time - y;
+            distance = Math.sqrt(deltaX * deltaX + deltaY * deltaY);
+            if (!solveStationary(distance))
+                return false;
+            boolean converged = Math.abs(timeOfFlight - time) < TIME_TOLERANCE;
+            time = timeOfFlight;
+            if (converged) {
+                valid = true;
+                break;
+            }
+        }
+        if (!valid)
+            return false;
+        // Turret angle relative to the robot
+        turretAngle = General.compassify(Math.toDegrees(Math.atan2(deltaY, deltaX) - headingRadians));
+        return true;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public double getTurretAngle() {
+        return turretAngle;
+    }
+
+    public double getElevation() {
+        return elevation;
+    }
+
+    public double getFlywheelVelocity() {
+        return flywheelVelocity;
+    }
+
+    public double getTimeOfFlight() {
+        return timeOfFlight;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    private boolean solveStationary(double distance) {
+        if (distance <= 0)
+            return false;
+        // The elevation needing the lowest exit velocity, within the hood's range
+        double angle = (Math.PI / 2 + Math.atan2(targetHeight, distance)) / 2;
+        angle = Math.max(Math.toRadians(minimumElevation), Math.min(Math.toRadians(maximumElevation), angle));
+        // d = v cos(a) t, h = v sin(a) t - g t^2 / 2
+        double cosine = Math.cos(angle);
+        double rise = distance * Math.tan(angle) - targetHeight;
+        if (rise <= 0)
+            return false;
+        double exitVelocity = Math.sqrt(GRAVITY * distance * distance / (2 * cosine * cosine * rise));
+        double velocity = exitVelocity / efficiency;
+        if (velocity > maximumVelocity)
+            return false;
+        elevation = Math.toDegrees(angle);
+        flywheelVelocity = velocity;
+        timeOfFlight = distance / (exitVelocity * cosine);
+        return true;
+    }
+}
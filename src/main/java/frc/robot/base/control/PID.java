@@ -3,7 +3,9 @@ package frc.robot.base.control;
 import com.ga2230.shleam.advanced.frc.FRCModule;
 import com.ga2230.shleam.base.structure.Function;
 import com.ga2230.shleam.base.structure.Result;
+import frc.robot.base.utils.Clock;
 import frc.robot.base.utils.General;
+import frc.robot.base.utils.Signature;
 
 /**
  * Copyright (c) 2019 General Angels
@@ -22,36 +24,60 @@ public class PID extends FRCModule {
     private static final double MINIMUM_SETPOINT = 0.01;
     private static final double MINIMUM_ERROR_INTEGRAL = 10;
 
+    // Time delta bounds, a delta outside of them (first cycle, after disable) is replaced with the last valid one,
+    // or before there is one with the nominal (the 100 Hz control tasks' period)
+    private static final double NOMINAL_DELTA = 0.01;
+    private static final double MINIMUM_DELTA = 0.0005;
+    private static final double MAXIMUM_DELTA = 0.1;
+
+    // Back-calculation gain (1/s), how fast the integral unwinds while the output is saturated
+    private static final double ANTI_WINDUP = 5;
+
     private double kP;
     private double kI;
     private double kD;
     private double kF;
 
-    private double previousTime = millis();
+    private double previousTime = Clock.cycleSeconds();
+    private boolean deltaUpdated = false;
 
-    private double timeDelta = 0.02;
+    private double timeDelta = NOMINAL_DELTA;
+    private double validDelta = NOMINAL_DELTA;
 
+    private boolean hasMeasurement = false;
+    private boolean measured = false;
     private double measurement = 0;
     private double previousMeasurement = 0;
     private double derivative = 0;
     private double previousDerivative = 0;
+    private double setpoint = 0;
     private double error = 0;
     private double previousError = 0;
 
+    // The integral is kept as a term (already multiplied by kI), so kI changes are bumpless
     private double integral = 0;
 
+    // Whether the last calculation used kF (only PIDVelocity does)
+    private boolean feedForward = false;
+
     public PID(String id, double kP, double kI, double kD, double kF) {
         super(id);
 
-        setPIDF(kP, kI, kD, kF);
+        this.kP = kP;
+        this.kI = kI;
+        this.kD = kD;
+        this.kF = kF;
 
         register("set", new Function() {
+
+            private Signature signature = new Signature("set").number("kP").number("kI").number("kD").number("kF");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                String[] split = parameter.split(" ");
-                if (split.length == 4) {
-                    setPIDF(Double.parseDouble(split[0]), Double.parseDouble(split[1]), Double.parseDouble(split[2]), Double.parseDouble(split[3]));
-                }
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                setPIDF(signature.getNumber(0), signature.getNumber(1), signature.getNumber(2), signature.getNumber(3));
                 return Result.finished("OK");
             }
         });
@@ -62,10 +88,6 @@ public class PID extends FRCModule {
     }
 
     public double calculateDerivative() {
-        if (measurement == previousMeasurement)
-            return derivative;
-        derivative = (measurement - previousMeasurement) / timeDelta;
-        derivative = General.deadband(derivative, 0.001);
         return derivative;
     }
 
@@ -78,50 +100,70 @@ public class PID extends FRCModule {
     }
 
     public double PIDPosition(double measurement, double setpoint) {
+        setMeasurement(measurement);
         return PIDPosition(measurement, setpoint, calculateDerivative());
     }
 
     public double PIDPosition(double measurement, double setpoint, double derivative) {
         double controlSignal;
-        setMeasurement(measurement);
+        prepare(measurement, setpoint);
+        feedForward = false;
         error = setpoint - measurement;
         if (Math.abs(error) < TOLERANCE) {
             controlSignal = 0;
         } else {
-            integral += ((error + previousError) * timeDelta) / 2 * kI;
-            integral = range(integral, MINIMUM_INTEGRAL, MAXIMUM_INTEGRAL);
-            controlSignal = (error * kP) + integral - (derivative * kD);
+            integrate();
+            // Derivative on measurement, so setpoint steps do not kick the output
+            controlSignal = antiWindup((error * kP) + integral - (derivative * kD));
         }
         previousError = error;
+        publish();
         return range(controlSignal, MINIMUM_SIGNAL, MAXIMUM_SIGNAL);
     }
 
     public double PIDGravity(double measurement, double setpoint, double compensation) {
+        setMeasurement(measurement);
         return PIDGravity(measurement, setpoint, calculateDerivative(), compensation);
     }
 
     public double PIDGravity(double measurement, double setpoint, double derivative, double compensation) {
-        setMeasurement(measurement);
+        prepare(measurement, setpoint);
+        feedForward = false;
         error = setpoint - measurement;
         if (Math.abs(error) < MINIMUM_ERROR_INTEGRAL) {
-            integral += ((error + previousError) * timeDelta) / 2 * kI;
-            integral = range(integral, MINIMUM_INTEGRAL, MAXIMUM_INTEGRAL);
+            integrate();
         } else {
             integral = 0;
         }
         previousError = error;
-        return range((error * kP) + integral - (derivative * kD) + compensation, MINIMUM_SIGNAL, MAXIMUM_SIGNAL);
+        publish();
+        return range(antiWindup((error * kP) + integral - (derivative * kD) + compensation), MINIMUM_SIGNAL, MAXIMUM_SIGNAL);
     }
 
     public void updateDelta() {
-        this.timeDelta = (millis() - previousTime) / 1000;
-        this.previousTime = millis();
+        double time = Clock.cycleSeconds();
+        double delta = time - previousTime;
+        previousTime = time;
+        // Ignore bogus deltas
+        if (delta < MINIMUM_DELTA || delta > MAXIMUM_DELTA)
+            delta = validDelta;
+        else
+            validDelta = delta;
+        this.timeDelta = delta;
+        this.deltaUpdated = true;
     }
 
     public double PIDVelocity(double measurement, double setpoint) {
-        double controlSignal;
         setMeasurement(measurement);
-        calculateDerivative();
+        return PIDVelocity(measurement, setpoint, calculateDerivative());
+    }
+
+    // Velocity measured elsewhere (estimator) instead of differentiating the measurement
+    public double PIDVelocity(double measurement, double setpoint, double velocity) {
+        double controlSignal;
+        prepare(measurement, setpoint);
+        feedForward = true;
+        derivative = velocity;
         error = setpoint - derivative;
         if (Math.abs(setpoint) < MINIMUM_SETPOINT) {
             // Zeroing controlSignal prevents braking when setpoint returns from high to 0
@@ -133,39 +175,97 @@ public class PID extends FRCModule {
             }
             integral = 0;
         } else {
-            integral += (((error + previousError) * timeDelta) / 2.0) * kI;
-            integral = range(integral, -MAXIMUM_INTEGRAL, MAXIMUM_INTEGRAL);
-            controlSignal = (setpoint * kF) + (error * kP) + integral;
+            integrate();
+            controlSignal = antiWindup((setpoint * kF) + (error * kP) + integral);
         }
         previousError = error;
         previousDerivative = derivative;
 
-        set("integral", String.valueOf(integral));
-        set("derivative", String.valueOf(derivative));
-        set("error", String.valueOf(derivative));
-        set("setpoint", String.valueOf(derivative));
+        publish();
 
         return range(controlSignal, -MAXIMUM_SIGNAL, MAXIMUM_SIGNAL);
     }
 
     public void setMeasurement(double value) {
-        previousMeasurement = measurement;
+        // Make sure the delta belongs to this sample
+        if (!deltaUpdated)
+            updateDelta();
+        previousMeasurement = hasMeasurement ? measurement : value;
         measurement = value;
+        hasMeasurement = true;
+        measured = true;
+        // Filtered derivative, recalculated every sample (repeating measurements mean zero velocity)
+        double rawDerivative = General.deadband((measurement - previousMeasurement) / timeDelta, 0.001);
+        previousDerivative = derivative;
+        derivative = alphaFilter(rawDerivative, derivative);
     }
 
     public void setPIDF(double kp, double ki, double kd, double kf) {
+        // Bumpless transfer - move the output change caused by the new kP (and kF or kD, whichever the last calculation used) into the integral
+        if (hasMeasurement) {
+            // Velocity control has kF and no kD term (its derivative is the measured velocity)
+            double transferred = integral + (this.kP - kp) * error + (feedForward ? (this.kF - kf) * setpoint : (kd - this.kD) * derivative);
+            // Past the clamp the transfer would be cut short anyway, let the output step instead
+            if (transferred >= MINIMUM_INTEGRAL && transferred <= MAXIMUM_INTEGRAL)
+                integral = transferred;
+        }
         this.kP = kp;
         this.kI = ki;
         this.kD = kd;
         this.kF = kf;
+    }
+
+    public void reset() {
+        this.hasMeasurement = false;
+        this.measured = false;
         this.measurement = 0;
         this.previousMeasurement = 0;
         this.integral = 0;
         this.derivative = 0;
         this.previousDerivative = 0;
+        this.setpoint = 0;
         this.error = 0;
         this.previousError = 0;
-        this.previousTime = millis();
+        this.previousTime = Clock.cycleSeconds();
+        this.deltaUpdated = false;
+    }
+
+    private void prepare(double measurement, double setpoint) {
+        if (!deltaUpdated)
+            updateDelta();
+        // Measurement was not set by an overload (derivative was given by the caller)
+        if (!measured) {
+            previousMeasurement = hasMeasurement ? this.measurement : measurement;
+            this.measurement = measurement;
+            hasMeasurement = true;
+        }
+        this.setpoint = setpoint;
+        // The next calculation samples a new delta and measurement
+        this.deltaUpdated = false;
+        this.measured = false;
+    }
+
+    private void integrate() {
+        // Trapezoidal integration
+        integral += ((error + previousError) * timeDelta) / 2.0 * kI;
+        integral = range(integral, MINIMUM_INTEGRAL, MAXIMUM_INTEGRAL);
+    }
+
+    private double antiWindup(double controlSignal) {
+        // Back-calculation - bleed the integral by the amount the output is saturated
+        double saturated = range(controlSignal, MINIMUM_SIGNAL, MAXIMUM_SIGNAL);
+        if (saturated != controlSignal && kI != 0) {
+            integral += (saturated - controlSignal) * ANTI_WINDUP * timeDelta;
+            integral = range(integral, MINIMUM_INTEGRAL, MAXIMUM_INTEGRAL);
+        }
+        return controlSignal;
+    }
+
+    private void publish() {
+        set("integral", String.valueOf(integral));
+        set("derivative", String.valueOf(derivative));
+        set("error", String.valueOf(error));
+        set("setpoint", String.valueOf(setpoint));
     }
 
     public double getDerivative() {
@@ -175,4 +275,20 @@ public class PID extends FRCModule {
     public double getError() {
         return error;
     }
-}
\ No newline at end of file
+
+    public double getKP() {
+        return kP;
+    }
+
+    public double getKI() {
+        return kI;
+    }
+
+    public double getKD() {
+        return kD;
+    }
+
+    public double getKF() {
+        return kF;
+    }
+}
@@ -0,0 +1,185 @@
+package frc.robot.base.control;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class RelayTuner {
+
+    // Number of oscillations ignored before measuring (transient)
+    private static final int SKIPPED_CYCLES = 1;
+
+    // Updates further apart than this mean the run was abandoned (s)
+    private static final double ABANDON_TIMEOUT = 1;
+
+    private double setpoint;
+    private double bias;
+    private double amplitude;
+    private double hysteresis;
+    private int cycles;
+    private double timeout;
+
+    private boolean high = true;
+    private double startTime = -1;
+    private double risingTime = -1;
+    private double lastTime = -1;
+
+    private double maximum = -Double.MAX_VALUE;
+    private double minimum = Double.MAX_VALUE;
+
+    private int measuredCycles = 0;
+    private double periodSum = 0;
+    private double amplitudeSum = 0;
+
+    private double outputSum = 0;
+    private double measurementSum = 0;
+    private int samples = 0;
+
+    private boolean finished = false;
+    private boolean failed = false;
+
+    public RelayTuner(double setpoint, double bias, double amplitude, double hysteresis, int cycles, double timeout) {
+        this.setpoint = setpoint;
+        this.bias = bias;
+        this.amplitude = amplitude;
+        this.hysteresis = hysteresis;
+        this.cycles = cycles;
+        this.timeout = timeout;
+    }
+
+    public double update(double measurement, double time) {
+        if (finished)
+            return bias;
+        if (startTime < 0)
+            startTime = time;
+        lastTime = time;
+        // Timeout
+        if (time - startTime > timeout) {
+            finished = true;
+            failed = true;
+            return bias;
+        }
+        // Track extremes of the current cycle
+        maximum = Math.max(maximum, measurement);
+        minimum = Math.min(minimum, measurement);
+        // Relay with hysteresis
+        double error = setpoint - measurement;
+        if (high && error < -hysteresis) {
+            high = false;
+        } else if (!high && error > hysteresis) {
+            high = true;
+            // Rising switch - a full cycle ended
+            if (risingTime >= 0) {
+                if (++measuredCycles > SKIPPED_CYCLES) {
+                    periodSum += time - risingTime;
+                    amplitudeSum += (maximum - minimum) / 2.0;
+                }
+                if (measuredCycles >= cycles + SKIPPED_CYCLES)
+                    finished = true;
+            }
+            risingTime = time;
+            maximum = measurement;
+            minimum = measurement;
+        }
+        double output = bias + (high ? amplitude : -amplitude);
+        // Averages (for the feedforward estimation)
+        outputSum += output;
+        measurementSum += measurement;
+        samples++;
+        return finished ? bias : output;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean hasFailed() {
+        return failed || (finished && getUltimatePeriod() <= 0);
+    }
+
+    public double getUltimatePeriod() {
+        int measured = measuredCycles - SKIPPED_CYCLES;
+        return measured > 0 ? periodSum / measured : 0;
+    }
+
+    public double getUltimateGain() {
+        int measured = measuredCycles - SKIPPED_CYCLES;
+        if (measured <= 0)
+            return 0;
+        double oscillation = amplitudeSum / measured;
+        // Describing function of a relay with hysteresis
+        double effective = Math.sqrt(Math.max(oscillation * oscillation - hysteresis * hysteresis, 1e-9));
+        return (4 * amplitude) / (Math.PI * effective);
+    }
+
+    public double getFeedForward() {
+        return getFeedForward(0);
+    }
+
+    // Average output over average measurement (meaningful for velocity loops), without an offset the controller
+    // adds by itself (static friction), so it is not counted twice
+    public double getFeedForward(double offset) {
+        if (samples == 0 || Math.abs(measurementSum) < 1e-9)
+            return 0;
+        return (outputSum - offset * samples) / measurementSum;
+    }
+
+    public double[] getGains(Rule rule) {
+        double kU = getUltimateGain();
+        double tU = getUltimatePeriod();
+        double kP = rule.p * kU;
+        double kI = rule.i > 0 ? kP / (rule.i * tU) : 0;
+        double kD = kP * rule.d * tU;
+        return new double[]{kP, kI, kD};
+    }
+
+    public static double[] toTalonGains(double[] gains) {
+        // Talon gains are in 1023 units, integrated and differentiated per 1ms loop
+        return new double[]{gains[0] * 1023, gains[1] * 1023 / 1000.0, gains[2] * 1023 * 1000.0};
+    }
+
+    // Nobody updated the run for a while, callers start over instead of resuming it
+    public boolean isAbandoned(double time) {
+        return lastTime >= 0 && time - lastTime > ABANDON_TIMEOUT;
+    }
+
+    public enum Rule {
+        // Kp = p * Ku, Ti = i * Tu, Td = d * Tu
+        ZieglerNichols("zn", 0.6, 0.5, 0.125),
+        ZieglerNicholsPI("zn-pi", 0.45, 1 / 1.2, 0),
+        TyreusLuyben("tl", 1 / 2.2, 2.2, 1 / 6.3),
+        TyreusLuybenPI("tl-pi", 1 / 3.2, 2.2, 0),
+        PessenIntegral("pessen", 0.7, 0.4, 0.15),
+        SomeOvershoot("some", 0.33, 0.5, 1 / 3.0),
+        NoOvershoot("none", 0.2, 0.5, 1 / 3.0);
+
+        private String name;
+        private double p, i, d;
+
+        Rule(String name, double p, double i, double d) {
+            this.name = name;
+            this.p = p;
+            this.i = i;
+            this.d = d;
+        }
+
+        // Null if there is no such rule
+        public static Rule fromString(String string) {
+            for (Rule rule : values()) {
+                if (rule.name.equals(string))
+                    return rule;
+            }
+            return null;
+        }
+
+        // Names in declaration order, for Signature choices
+        public static String[] names() {
+            Rule[] rules = values();
+            String[] names = new String[rules.length];
+            for (int i = 0; i < rules.length; i++)
+                names[i] = rules[i].name;
+            return names;
+        }
+    }
+}
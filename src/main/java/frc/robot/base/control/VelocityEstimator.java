@@ -0,0 +1,119 @@
+package frc.robot.base.control;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import frc.robot.base.utils.Signature;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class VelocityEstimator extends FRCModule {
+
+    // Low pass time constant (s) of the position difference
+    private static final double TIME_CONSTANT = 0.02;
+    // Counts per update from which the position difference is trusted over the period measurement
+    private static final double BLEND_COUNTS = 8;
+    // Longer gaps (disabled, first update) restart the filter
+    private static final double MAXIMUM_DELTA = 0.1;
+
+    private double timeConstant = TIME_CONSTANT;
+    private double blendCounts = BLEND_COUNTS;
+
+    // Counts the period measurement averages over, its latency is half of that window
+    private int windowCounts;
+
+    private boolean initialized = false;
+    private double lastPosition = 0;
+    private long lastMicros = 0;
+    // Time since the position last changed (s)
+    private double idle = 0;
+
+    private double filtered = 0;
+    private double velocity = 0;
+    private double latency = 0;
+    private double weight = 0;
+
+    public VelocityEstimator(String id, int windowCounts) {
+        super(id);
+        this.windowCounts = windowCounts;
+
+        register("filter", new Function() {
+
+            private Signature signature = new Signature("filter").number("time-constant").number("blend-counts");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                timeConstant = Math.max(0, signature.getNumber(0));
+                blendCounts = Math.max(1, signature.getNumber(1));
+                return Result.finished("Set");
+            }
+        });
+    }
+
+    // Position in counts, the period based rate in counts per second (NaN if there is none) and when both were sampled
+    public void update(double position, double periodRate, long micros) {
+        boolean hasPeriod = !Double.isNaN(periodRate);
+        if (!initialized) {
+            initialized = true;
+            idle = 0;
+            lastPosition = position;
+            lastMicros = micros;
+            filtered = hasPeriod ? periodRate : 0;
+            velocity = filtered;
+            return;
+        }
+        // Same sample again
+        if (micros <= lastMicros)
+            return;
+        double delta = (micros - lastMicros) / 1e6;
+        double counts = position - lastPosition;
+        lastPosition = position;
+        lastMicros = micros;
+        // No counts for a while bound the speed, so a stale period measurement decays towards the position difference
+        idle = counts != 0 ? 0 : idle + delta;
+        if (hasPeriod && idle > 0)
+            periodRate = Math.signum(periodRate) * Math.min(Math.abs(periodRate), 1 / idle);
+        // Filtered position difference
+        if (delta > MAXIMUM_DELTA) {
+            filtered = counts / delta;
+        } else {
+            filtered += (counts / delta - filtered) * delta / (timeConstant + delta);
+        }
+        // A few counts per update quantize the difference, the period measurement is better there
+        weight = hasPeriod ? Math.min(1, Math.abs(counts) / blendCounts) : 1;
+        double periodLatency = hasPeriod && periodRate != 0 ? windowCounts / (2 * Math.abs(periodRate)) : 0;
+        velocity = weight * filtered + (1 - weight) * (hasPeriod ? periodRate : 0);
+        latency = weight * (timeConstant + delta / 2) + (1 - weight) * periodLatency;
+    }
+
+    public void reset() {
+        initialized = false;
+        idle = 0;
+        filtered = 0;
+        velocity = 0;
+        latency = 0;
+        weight = 0;
+    }
+
+    // Counts per second
+    public double getVelocity() {
+        return velocity;
+    }
+
+    // Estimated age of the velocity (s)
+    public double getLatency() {
+        return latency;
+    }
+
+    public void publish() {
+        set("velocity", String.valueOf(velocity));
+        set("latency", String.valueOf(latency));
+        set("weight", String.valueOf(weight));
+    }
+}
@@ -0,0 +1,144 @@
+package frc.robot.base.control.path;
+
+import edu.wpi.first.wpilibj.controller.SimpleMotorFeedforward;
+import edu.wpi.first.wpilibj.geometry.Pose2d;
+import edu.wpi.first.wpilibj.kinematics.DifferentialDriveKinematics;
+import edu.wpi.first.wpilibj.trajectory.TrajectoryConfig;
+import edu.wpi.first.wpilibj.trajectory.constraint.CentripetalAccelerationConstraint;
+import edu.wpi.first.wpilibj.trajectory.constraint.DifferentialDriveVoltageConstraint;
+import edu.wpi.first.wpilibj.trajectory.constraint.TrajectoryConstraint;
+import frc.robot.base.drive.DifferentialDrive;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class PathConstraints {
+
+    // Defaults
+    private static final double VELOCITY = 2; // m/s, of the chassis and of each wheel
+    private static final double ACCELERATION = 1; // m/s^2
+    private static final double CENTRIPETAL = 1.5; // m/s^2, keeps the wheels from slipping in turns
+    private static final double VOLTAGE = 10; // Leaves headroom for battery sag and the feedback
+
+    private double velocity = VELOCITY;
+    private double acceleration = ACCELERATION;
+    private double centripetal = CENTRIPETAL;
+    private double voltage = VOLTAGE;
+    private ArrayList<Zone> zones = new ArrayList<>();
+
+    public PathConstraints velocity(double velocity) {
+        this.velocity = velocity;
+        return this;
+    }
+
+    public PathConstraints acceleration(double acceleration) {
+        this.acceleration = acceleration;
+        return this;
+    }
+
+    public PathConstraints centripetal(double centripetal) {
+        this.centripetal = centripetal;
+        return this;
+    }
+
+    public PathConstraints voltage(double voltage) {
+        this.voltage = voltage;
+        return this;
+    }
+
+    // Caps the speed inside a field rectangle (corners in any order)
+    public PathConstraints zone(double x1, double y1, double x2, double y2, double velocity) {
+        zones.add(new Zone(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), velocity));
+        return this;
+    }
+
+    public PathConstraints clearZones() {
+        zones.clear();
+        return this;
+    }
+
+    public PathConstraints copy() {
+        PathConstraints copy = new PathConstraints().velocity(velocity).acceleration(acceleration).centripetal(centripetal).voltage(voltage);
+        copy.zones.addAll(zones);
+        return copy;
+    }
+
+    public double getVelocity() {
+        return velocity;
+    }
+
+    public double getAcceleration() {
+        return acceleration;
+    }
+
+    public double getCentripetal() {
+        return centripetal;
+    }
+
+    public double getVoltage() {
+        return voltage;
+    }
+
+    // Lowest zone velocity at a position (infinite outside of every zone)
+    public double limit(double x, double y) {
+        double limit = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < zones.size(); i++) {
+            Zone zone = zones.get(i);
+            if (zone.contains(x, y))
+                limit = Math.min(limit, zone.velocity);
+        }
+        return limit;
+    }
+
+    public TrajectoryConfig toConfig(boolean reversed, double startVelocity, double endVelocity) {
+        DifferentialDriveKinematics kinematics = new DifferentialDriveKinematics(DifferentialDrive.WHEEL_DISTANCE);
+        // Kinematics limit the outer wheel to the maximum velocity
+        TrajectoryConfig config = new TrajectoryConfig(velocity, acceleration)
+                .setKinematics(kinematics)
+                .addConstraint(new CentripetalAccelerationConstraint(centripetal))
+                .addConstraint(new DifferentialDriveVoltageConstraint(new SimpleMotorFeedforward(DifferentialDrive.KS, DifferentialDrive.KV, DifferentialDrive.KA), kinematics, voltage));
+        for (Zone zone : zones)
+            config.addConstraint(zone);
+        config.setReversed(reversed);
+        config.setStartVelocity(startVelocity);
+        config.setEndVelocity(endVelocity);
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        return "velocity " + velocity + " acceleration " + acceleration + " centripetal " + centripetal + " voltage " + voltage + " zones " + zones.size();
+    }
+
+    private static class Zone implements TrajectoryConstraint {
+
+        private double minimumX, minimumY, maximumX, maximumY;
+        private double velocity;
+
+        private Zone(double minimumX, double minimumY, double maximumX, double maximumY, double velocity) {
+            this.minimumX = minimumX;
+            this.minimumY = minimumY;
+            this.maximumX = maximumX;
+            this.maximumY = maximumY;
+            this.velocity = velocity;
+        }
+
+        private boolean contains(double x, double y) {
+            return x >= minimumX && x <= maximumX && y >= minimumY && y <= maximumY;
+        }
+
+        @Override
+        public double getMaxVelocityMetersPerSecond(Pose2d pose, double curvature, double velocity) {
+            return contains(pose.getTranslation().getX(), pose.getTranslation().getY()) ? this.velocity : Double.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public MinMax getMinMaxAccelerationMetersPerSecondSq(Pose2d pose, double curvature, double velocity) {
+            return new MinMax();
+        }
+    }
+}
@@ -6,18 +6,23 @@ import com.ga2230.shleam.base.structure.Result;
 import edu.wpi.first.wpilibj.geometry.Pose2d;
 import edu.wpi.first.wpilibj.geometry.Rotation2d;
 import edu.wpi.first.wpilibj.trajectory.Trajectory;
-import edu.wpi.first.wpilibj.trajectory.TrajectoryConfig;
 import edu.wpi.first.wpilibj.trajectory.TrajectoryGenerator;
 import frc.robot.base.drive.DifferentialDrive;
 import frc.robot.base.drive.Odometry;
 import frc.robot.base.utils.General;
+import frc.robot.base.utils.Logger;
+import frc.robot.base.utils.Signature;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.List;
 
 public class PathManager extends FRCModule {
 
+    // Waypoint syntax of "create", "chain" and the routine actions
+    public static final String WAYPOINTS_USAGE = "<x> <y> <theta> [forward|reverse] [; <x> <y> <theta> [forward|reverse]]...";
+
     private static final double TIME_DELTA = 0.02;
 
     private static final double RANGE_TOLERANCE = 0.2;
@@ -32,11 +37,28 @@ public class PathManager extends FRCModule {
 
     private static final boolean LOGS_ENABLED = true;
 
+    // Logs
+    private Logger logger = new Logger("path");
+    private Logger.Site lastPointLog = logger.site(Logger.Level.Debug, 250);
+    private Logger.Site pointLog = logger.site(Logger.Level.Debug, 250);
+    private Logger.Site turnLog = logger.site(Logger.Level.Debug, 250);
+
     private DifferentialDrive drive;
 
-    private ArrayList<Point> points;
+    // Used by paths created without their own constraints
+    private volatile PathConstraints constraints = new PathConstraints();
+
+    // Velocities for paths that arrive without them
+    private VelocityProfiler profiler = new VelocityProfiler();
+
+    private volatile ArrayList<Point> points;
+
+    // Bumped on every swap of the points, so work started before one can tell
+    private final Object swapLock = new Object();
+    private long generation = 0;
 
     private int index = 0;
+    private int followed = 0;
 
     public PathManager(DifferentialDrive drive) {
         super("path");
@@ -61,34 +83,79 @@ public class PathManager extends FRCModule {
         register("create", new Function() {
             @Override
             public Result execute(String parameter) throws Exception {
-                // Parse string into three parameters (x, y, theta)
-                String[] split = parameter.split(" ");
-                if (split.length == 4) {
-                    double x = Double.parseDouble(split[0]);
-                    double y = Double.parseDouble(split[1]);
-                    double theta = Double.parseDouble(split[2]);
-                    createTrajectory(new Point(x, y, theta, 0), split[3].equals("reverse"));
-                    return Result.finished("Trajectory created");
+                // Waypoints (x, y, theta and the direction of the leg reaching them)
+                ArrayList<Point> waypoints = parseWaypoints(parameter);
+                if (waypoints == null)
+                    return Result.notFinished("Usage: create " + WAYPOINTS_USAGE);
+                createPath(waypoints);
+                return Result.finished("Trajectory created");
+            }
+        });
+
+        register("chain", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                // Appends to the current path, without stopping in between
+                ArrayList<Point> waypoints = parseWaypoints(parameter);
+                if (waypoints == null)
+                    return Result.notFinished("Usage: chain " + WAYPOINTS_USAGE);
+                chainPath(waypoints);
+                return Result.finished("Trajectory chained");
+            }
+        });
+
+        register("constrain", new Function() {
+
+            private Signature signature = new Signature("constrain").number("velocity").number("acceleration").number("centripetal").number("voltage");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                constraints = constraints.copy().velocity(signature.getNumber(0)).acceleration(signature.getNumber(1)).centripetal(signature.getNumber(2)).voltage(signature.getNumber(3));
+                return Result.finished(constraints.toString());
+            }
+        });
+
+        register("zone", new Function() {
+
+            // Without parameters, clears the zones
+            private Signature signature = new Signature("zone").optional().number("x1").number("y1").number("x2").number("y2").number("velocity");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                if (signature.has(4)) {
+                    constraints = constraints.copy().zone(signature.getNumber(0), signature.getNumber(1), signature.getNumber(2), signature.getNumber(3), signature.getNumber(4));
+                } else if (signature.has(0)) {
+                    return Result.notFinished("Usage: " + signature.getUsage());
                 } else {
-                    return Result.notFinished("Wrong number of parameters");
+                    constraints = constraints.copy().clearZones();
                 }
+                return Result.finished(constraints.toString());
             }
         });
 
         // Request a path from the laptop
         register("request", new Function() {
+
+            // Without parameters, polls for the requested path
+            private Signature signature = new Signature("request").optional().number("x").number("y").number("angle");
+
             @Override
             public Result execute(String parameter) throws Exception {
                 // Parse string into three parameters (x, y, theta)
-                String[] split = parameter.split(" ");
-                if (split.length == 3) {
-                    double x = Double.parseDouble(split[0]);
-                    double y = Double.parseDouble(split[1]);
-                    double angle = Double.parseDouble(split[2]);
-                    set("target-x", String.valueOf(x));
-                    set("target-y", String.valueOf(y));
-                    set("target-angle", String.valueOf(angle));
-                    points = null;
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                if (signature.has(2)) {
+                    set("target-x", String.valueOf(signature.getNumber(0)));
+                    set("target-y", String.valueOf(signature.getNumber(1)));
+                    set("target-angle", String.valueOf(signature.getNumber(2)));
+                    swap(null, false);
                 }
                 return Result.create(points != null, "Requesting");
             }
@@ -97,12 +164,7 @@ public class PathManager extends FRCModule {
         register("set", new Function() {
             @Override
             public Result execute(String parameter) throws Exception {
-                points = new ArrayList<>();
-                JSONArray array = new JSONArray(parameter);
-                for (int i = 0; i < array.length(); i++) {
-                    JSONObject object = array.getJSONObject(i);
-                    points.add(new Point(object.getDouble("x"), object.getDouble("y"), object.getDouble("angle"), object.getDouble("curvature")));
-                }
+                setTrajectory(parameter);
                 return Result.finished("Thank you");
             }
         });
@@ -110,7 +172,7 @@ public class PathManager extends FRCModule {
         register("follow", new Function() {
             @Override
             public Result execute(String parameter) throws Exception {
-                if (points != null) {
+                if (points != null && !points.isEmpty()) {
                     boolean done = followTrajectory(parameter.equals("reverse"));
                     return Result.create(done, done ? "Done" : "Not done");
                 } else {
@@ -125,64 +187,201 @@ public class PathManager extends FRCModule {
         set("length", String.valueOf(points.size()));
     }
 
-    private void updateOdometry() {
-        drive.updateOdometry();
+    public void createTrajectory(Point target, boolean reversed) {
+        // Start from the current point (the odometry task's last sample)
+        createTrajectory(getCurrentPoint(), target, reversed);
     }
 
-    public void createTrajectory(Point target, boolean reversed) {
-        // Reset array
-        points = new ArrayList<>();
-        // Reset index
-        index = 1;
-        // Update odometry
-        updateOdometry();
-        // Configure trajectory
-        TrajectoryConfig config = new TrajectoryConfig(2, 1);
-        config.setEndVelocity(0);
-        // Points
-        Point start = getCurrentPoint();
-        Point end = target;
-        // Poses
-        trajectoryToPoints(TrajectoryGenerator.generateTrajectory(pointToState(start).poseMeters, new ArrayList<>(), pointToState(end).poseMeters, config));
+    // Does not touch the drive, so it can run off the control thread
+    public void createTrajectory(Point start, Point target, boolean reversed) {
+        createTrajectory(start, target, reversed, constraints);
+    }
+
+    public void createTrajectory(Point start, Point target, boolean reversed, PathConstraints constraints) {
+        ArrayList<Point> waypoints = new ArrayList<>();
+        waypoints.add(new Point(target.getX(), target.getY(), target.getAngle(), 0, Double.NaN, reversed));
+        createPath(start, waypoints, constraints);
+    }
+
+    public void createPath(List<Point> waypoints) {
+        // Start from the current point (the odometry task's last sample)
+        createPath(getCurrentPoint(), waypoints, constraints);
+    }
+
+    // Passes through the waypoints without stopping, except where the direction changes
+    public void createPath(Point start, List<Point> waypoints, PathConstraints constraints) {
+        swap(generate(start, waypoints, constraints), true);
+    }
+
+    // Generates a path ahead of time (loading the generator), kept only if no other path was set meanwhile
+    public void warmUp(Point start, Point target) {
+        long generation;
+        synchronized (swapLock) {
+            generation = this.generation;
+        }
+        ArrayList<Point> waypoints = new ArrayList<>();
+        waypoints.add(new Point(target.getX(), target.getY(), target.getAngle(), 0, Double.NaN, false));
+        ArrayList<Point> points = generate(start, waypoints, constraints);
+        synchronized (swapLock) {
+            if (generation == this.generation)
+                swap(points, true);
+        }
+    }
+
+    private void swap(ArrayList<Point> points, boolean restart) {
+        synchronized (swapLock) {
+            // Reset index
+            if (restart)
+                index = 1;
+            this.points = points;
+            generation++;
+        }
+    }
+
+    public void chainPath(List<Point> waypoints) {
+        chainPath(waypoints, constraints);
+    }
+
+    // Continues the current path from its end. When the direction stays the same, the end is no longer a stop -
+    // the velocities from the current point to the end of the new leg are profiled again, through the junction
+    public void chainPath(List<Point> waypoints, PathConstraints constraints) {
+        ArrayList<Point> current = points;
+        if (current == null || current.isEmpty()) {
+            createPath(waypoints);
+            return;
+        }
+        Point end = current.get(current.size() - 1);
+        ArrayList<Point> added = generate(end, waypoints, constraints);
+        // Start of the current path's last leg, not behind the point being followed
+        int from = Math.max(0, Math.min(index - 1, current.size() - 1));
+        int blendStart = current.size() - 1;
+        while (blendStart > from && current.get(blendStart - 1).isReversed() == end.isReversed())
+            blendStart--;
+        // The follower may still be reading the old points, the ones getting new velocities are copies
+        ArrayList<Point> chained = new ArrayList<>(current.size() + added.size());
+        for (int i = 0; i < current.size(); i++)
+            chained.add(i < blendStart ? current.get(i) : current.get(i).copy());
+        // The first added point is the old end
+        for (int i = 1; i < added.size(); i++)
+            chained.add(added.get(i));
+        if (added.size() > 1 && added.get(1).isReversed() == end.isReversed()) {
+            int blendEnd = current.size();
+            while (blendEnd < chained.size() && chained.get(blendEnd).isReversed() == end.isReversed())
+                blendEnd++;
+            double startVelocity = chained.get(blendStart).hasVelocity() ? chained.get(blendStart).getVelocity() : 0;
+            for (int i = blendStart; i < blendEnd; i++)
+                chained.get(i).setVelocity(Double.NaN);
+            profiler.profile(chained.subList(blendStart, blendEnd), constraints, startVelocity, 0);
+        }
+        swap(chained, false);
+    }
+
+    // Legs of "x y theta [forward|reverse]" separated by ';', null if one is malformed
+    public static ArrayList<Point> parseWaypoints(String parameter) {
+        if (parameter == null)
+            return null;
+        Signature signature = new Signature("waypoint").number("x").number("y").number("theta").optional().choice("direction", "forward", "reverse");
+        ArrayList<Point> waypoints = new ArrayList<>();
+        for (String leg : parameter.split(";")) {
+            if (signature.parse(leg) != null)
+                return null;
+            waypoints.add(new Point(signature.getNumber(0), signature.getNumber(1), signature.getNumber(2), 0, Double.NaN, signature.getChoice(3) == 1));
+        }
+        return waypoints;
+    }
+
+    private ArrayList<Point> generate(Point start, List<Point> waypoints, PathConstraints constraints) {
+        ArrayList<Point> points = new ArrayList<>();
+        points.add(start);
+        double duration = 0;
+        int i = 0;
+        while (i < waypoints.size()) {
+            // Consecutive waypoints in the same direction make one spline, the robot stops only to change direction
+            boolean reversed = waypoints.get(i).isReversed();
+            ArrayList<Pose2d> poses = new ArrayList<>();
+            poses.add(pointToState(points.get(points.size() - 1)).poseMeters);
+            while (i < waypoints.size() && waypoints.get(i).isReversed() == reversed)
+                poses.add(pointToState(waypoints.get(i++)).poseMeters);
+            Trajectory trajectory = TrajectoryGenerator.generateTrajectory(poses, constraints.toConfig(reversed, 0, 0));
+            duration += trajectory.getTotalTimeSeconds();
+            // The first state is where the previous leg ended
+            List<Trajectory.State> states = trajectory.getStates();
+            if (points.size() == 1)
+                points.set(0, stateToPoint(states.get(0), reversed));
+            for (int state = 1; state < states.size(); state++)
+                points.add(stateToPoint(states.get(state), reversed));
+        }
+        set("duration", String.valueOf(duration));
+        return points;
+    }
+
+    public void setTrajectory(String json) {
+        ArrayList<Point> points = new ArrayList<>();
+        JSONArray array = new JSONArray(json);
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            points.add(new Point(object.getDouble("x"), object.getDouble("y"), object.getDouble("angle"), object.getDouble("curvature"), object.optDouble("velocity", Double.NaN), object.optBoolean("reversed", false)));
+        }
+        // Fastest velocities the geometry and the constraints allow (laptop velocities only lower them)
+        set("duration", String.valueOf(profiler.profile(points, constraints, 0, 0)));
+        swap(points, true);
+    }
+
+    // Returns 1 (forward) or -1 (reverse) if the trajectory was followed since the last poll, 0 otherwise
+    public int pollFollowed() {
+        int followed = this.followed;
+        this.followed = 0;
+        return followed;
     }
 
     public boolean followTrajectory(boolean reversed) {
-        // Update progress and odometry
+        followed = reversed ? -1 : 1;
+        // Update progress, the odometry is the odometry task's sample (reading the encoders again would not be recorded)
         updateProgress();
-        updateOdometry();
         // Follow trajectory
         double currentDesiredOmega;
         double currentDesiredVelocity;
         if (index < points.size()) {
+            Point target = points.get(index);
+            // Chained paths say which of their legs are reversed
+            boolean reversing = reversed || target.isReversed();
             // Calculate errors
-            double[] errors = calculateErrors();
+            double[] errors = calculateErrors(reversing);
             // Calculate desired angular velocity
             currentDesiredOmega = errors[2] * K_THETA - getCurrentPoint().getCurvature() * K_OMEGA;
+            // Planned turn rate
+            if (target.hasVelocity())
+                currentDesiredOmega += target.getVelocity() * target.getCurvature();
             // Check if last point
             //if (index == points.size() - 1) { //TODO: check if changed if works
             Point lastPoint = points.get(points.size() - 1);
             if (distance(getCurrentPoint(), lastPoint) < 0.5) {
-                log("last point");
+                lastPointLog.log("last point");
                 currentDesiredVelocity = errors[0] * K_VELOCITY;
                 if (General.deadband(errors[0], RANGE_TOLERANCE) == 0)
                     index++;
                 // TODO these two if are meaningfully the same
             } else {
-                log("not last point");
-                currentDesiredVelocity = MAXIMUM_VELOCITY - Math.abs(errors[2]) * K_CURVATURE;
+                pointLog.log("not last point");
+                if (target.hasVelocity()) {
+                    // Planned velocity, already limited by the path's constraints
+                    currentDesiredVelocity = Math.abs(target.getVelocity());
+                } else {
+                    currentDesiredVelocity = MAXIMUM_VELOCITY - Math.abs(errors[2]) * K_CURVATURE;
+                }
                 if (General.deadband(errors[0], errors[1]) == 0)
                     index++;
             }
             // Make sure the signal is positive
             currentDesiredVelocity = Math.max(currentDesiredVelocity, MINIMUM_VELOCITY);
             // Multiply for reverse
-            currentDesiredVelocity *= (!reversed ? 1 : -1);
+            currentDesiredVelocity *= (!reversing ? 1 : -1);
             // Send command
             drive.driveVector(currentDesiredVelocity, currentDesiredOmega);
             // Return not done
             return false;
         } else {
-            log("only turn");
+            turnLog.log("only turn");
             // Fix target
             currentDesiredVelocity = 0;
             // Calculate errors
@@ -200,13 +399,23 @@ public class PathManager extends FRCModule {
         }
     }
 
+    // Points being followed (replaced, never modified, when a new path is set)
+    public List<Point> getPoints() {
+        return points;
+    }
+
     public Point getCurrentPoint() {
         return drive.getOdometry().toPoint();
     }
 
     public double[] calculateErrors() {
-        // Theta calculation
-        double errorTheta = Math.toRadians(General.compassify(Math.toDegrees(curvature(getCurrentPoint(), points.get(index)) - Math.toRadians(getCurrentPoint().getAngle()))));
+        return calculateErrors(false);
+    }
+
+    public double[] calculateErrors(boolean reversed) {
+        // Theta calculation (when reversing, the back of the robot faces the point)
+        double facing = getCurrentPoint().getAngle() + (reversed ? 180 : 0);
+        double errorTheta = Math.toRadians(General.compassify(Math.toDegrees(curvature(getCurrentPoint(), points.get(index)) - Math.toRadians(facing))));
         // Error calculation
         double currentDistanceError = distance(getCurrentPoint(), points.get(index));
         double previousDistanceError = distance(getCurrentPoint(), points.get(index - 1));
@@ -256,14 +465,7 @@ public class PathManager extends FRCModule {
         return state;
     }
 
-    private Point stateToPoint(Trajectory.State state) {
-        return new Point(state.poseMeters.getTranslation().getX(), state.poseMeters.getTranslation().getY(), state.poseMeters.getRotation().getDegrees(), state.curvatureRadPerMeter);
-    }
-
-    private void trajectoryToPoints(Trajectory trajectory) {
-        points = new ArrayList<>();
-        for (Trajectory.State state : trajectory.getStates()) {
-            points.add(stateToPoint(state));
-        }
+    private Point stateToPoint(Trajectory.State state, boolean reversed) {
+        return new Point(state.poseMeters.getTranslation().getX(), state.poseMeters.getTranslation().getY(), state.poseMeters.getRotation().getDegrees(), state.curvatureRadPerMeter, state.velocityMetersPerSecond, reversed);
     }
 }
@@ -5,6 +5,10 @@ import org.json.JSONObject;
 public class Point {
     private double x, y;
     private double angle, curvature;
+    // Planned velocity (m/s, negative when reversing), NaN when the path has none
+    private double velocity = Double.NaN;
+    // Driven backwards (the angle is still the robot's heading)
+    private boolean reversed = false;
 
     public Point(double x, double y, double angle, double curvature) {
         this.x = x;
@@ -13,6 +17,20 @@ public class Point {
         this.curvature = curvature;
     }
 
+    public Point(double x, double y, double angle, double curvature, double velocity) {
+        this(x, y, angle, curvature);
+        this.velocity = velocity;
+    }
+
+    public Point(double x, double y, double angle, double curvature, double velocity, boolean reversed) {
+        this(x, y, angle, curvature, velocity);
+        this.reversed = reversed;
+    }
+
+    public Point copy() {
+        return new Point(x, y, angle, curvature, velocity, reversed);
+    }
+
     public double getX() {
         return x;
     }
@@ -29,12 +47,32 @@ public class Point {
         return curvature;
     }
 
+    public double getVelocity() {
+        return velocity;
+    }
+
+    void setVelocity(double velocity) {
+        this.velocity = velocity;
+    }
+
+    public boolean hasVelocity() {
+        return !Double.isNaN(velocity);
+    }
+
+    public boolean isReversed() {
+        return reversed;
+    }
+
     public JSONObject toJSON() {
         JSONObject object = new JSONObject();
         object.put("x", x);
         object.put("y", y);
         object.put("angle", angle);
         object.put("curvature", curvature);
+        if (hasVelocity())
+            object.put("velocity", velocity);
+        if (reversed)
+            object.put("reversed", true);
         return object;
     }
 }
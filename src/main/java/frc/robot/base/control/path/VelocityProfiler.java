@@ -0,0 +1,104 @@
+package frc.robot.base.control.path;
+
+import frc.robot.base.drive.DifferentialDrive;
+
+import java.util.List;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class VelocityProfiler {
+
+    // Straight segments still get a finite curvature limit this small
+    private static final double MINIMUM_CURVATURE = 1e-6;
+
+    // Per point work arrays, grown only when a longer path arrives
+    private double[] lengths = new double[0];
+    private double[] velocities = new double[0];
+
+    private double duration = 0;
+
+    // Fastest velocities along the points' geometry: a forward pass limits acceleration, a backward pass deceleration,
+    // both through the stops where the direction changes.
+    // Linear in the number of points, allocation free once the arrays fit. Returns the path's duration (s)
+    public synchronized double profile(List<Point> points, PathConstraints constraints, double startVelocity, double endVelocity) {
+        int count = points.size();
+        duration = 0;
+        if (count == 0)
+            return 0;
+        if (velocities.length < count) {
+            lengths = new double[count];
+            velocities = new double[count];
+        }
+        double acceleration = constraints.getAcceleration();
+        double halfTrack = DifferentialDrive.WHEEL_DISTANCE / 2;
+        // Steady state voltage limit of the wheels
+        double voltageVelocity = (constraints.getVoltage() - DifferentialDrive.KS) / DifferentialDrive.KV;
+        // Limits at each point
+        for (int i = 0; i < count; i++) {
+            Point point = points.get(i);
+            lengths[i] = i == 0 ? 0 : distance(points.get(i - 1), point);
+            double curvature = Math.max(Math.abs(point.getCurvature()), i == 0 || i == count - 1 ? 0 : geometricCurvature(points.get(i - 1), point, points.get(i + 1)));
+            curvature = Math.max(curvature, MINIMUM_CURVATURE);
+            // The outer wheel runs faster than the chassis by (1 + curvature * half track)
+            double wheelScale = 1 + curvature * halfTrack;
+            double limit = Math.min(constraints.getVelocity(), voltageVelocity) / wheelScale;
+            limit = Math.min(limit, Math.sqrt(constraints.getCentripetal() / curvature));
+            limit = Math.min(limit, constraints.limit(point.getX(), point.getY()));
+            if (point.hasVelocity())
+                limit = Math.min(limit, Math.abs(point.getVelocity()));
+            velocities[i] = Math.max(0, limit);
+            // The robot stops where the direction changes (a cusp looks straight to the curvature)
+            if (i > 0 && points.get(i - 1).isReversed() != point.isReversed())
+                velocities[i - 1] = 0;
+        }
+        velocities[0] = Math.min(velocities[0], Math.abs(startVelocity));
+        velocities[count - 1] = Math.min(velocities[count - 1], Math.abs(endVelocity));
+        // Forward pass - acceleration, also limited by the voltage left over the velocity's back EMF
+        for (int i = 1; i < count; i++) {
+            double previous = velocities[i - 1];
+            double available = (constraints.getVoltage() - DifferentialDrive.KS - DifferentialDrive.KV * previous) / DifferentialDrive.KA;
+            double limit = Math.max(0, Math.min(acceleration, available));
+            velocities[i] = Math.min(velocities[i], Math.sqrt(previous * previous + 2 * limit * lengths[i]));
+        }
+        // Backward pass - deceleration
+        for (int i = count - 2; i >= 0; i--) {
+            double next = velocities[i + 1];
+            velocities[i] = Math.min(velocities[i], Math.sqrt(next * next + 2 * acceleration * lengths[i + 1]));
+        }
+        // Write back (negative when reversing), with the duration of each segment at its average velocity
+        for (int i = 0; i < count; i++) {
+            Point point = points.get(i);
+            point.setVelocity(point.isReversed() ? -velocities[i] : velocities[i]);
+            if (i > 0 && lengths[i] > 0) {
+                double average = (velocities[i - 1] + velocities[i]) / 2;
+                duration += average > 0 ? lengths[i] / average : 0;
+            }
+        }
+        return duration;
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    private static double distance(Point first, Point second) {
+        double x = second.getX() - first.getX();
+        double y = second.getY() - first.getY();
+        return Math.sqrt(x * x + y * y);
+    }
+
+    // Curvature of the circle through three points (4 * area / product of the sides)
+    private static double geometricCurvature(Point first, Point second, Point third) {
+        double a = distance(first, second);
+        double b = distance(second, third);
+        double c = distance(first, third);
+        double product = a * b * c;
+        if (product == 0)
+            return 0;
+        double cross = (second.getX() - first.getX()) * (third.getY() - first.getY()) - (second.getY() - first.getY()) * (third.getX() - first.getX());
+        return 2 * Math.abs(cross) / product;
+    }
+}
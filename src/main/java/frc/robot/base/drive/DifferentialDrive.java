@@ -3,10 +3,17 @@ package frc.robot.base.drive;
 import com.ga2230.shleam.advanced.frc.FRCModule;
 import com.ga2230.shleam.base.structure.Function;
 import com.ga2230.shleam.base.structure.Result;
+import edu.wpi.first.wpilibj.Encoder;
 import edu.wpi.first.wpilibj.SpeedController;
 import frc.robot.base.control.PID;
+import frc.robot.base.control.RelayTuner;
+import frc.robot.base.control.VelocityEstimator;
+import frc.robot.base.recorder.Replay;
+import frc.robot.base.utils.Clock;
 import frc.robot.base.utils.General;
+import frc.robot.base.utils.Logger;
 import frc.robot.base.utils.MotorGroup;
+import frc.robot.base.utils.Signature;
 
 import static java.lang.Thread.sleep;
 
@@ -14,12 +21,22 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
 
     private static final double TOLERANCE = 0.05;
 
-    private static final double WHEEL_DISTANCE = 0.66;
-    private static final double WHEEL_RADIUS = 0.0762;
+    public static final double WHEEL_DISTANCE = 0.66;
+    public static final double WHEEL_RADIUS = 0.0762;
+
+    // Drive model in volts, for trajectory generation - static friction (the deadband below), per m/s (the wheel velocity kF), per m/s^2 (estimated)
+    public static final double KS = 0.826;
+    public static final double KV = 0.22 / WHEEL_RADIUS;
+    public static final double KA = 0.4;
 
     private static final double TICKS_PER_REVOLUTION = 2048;
     private static final double ENCODER_TO_RADIAN = (2 * Math.PI) / TICKS_PER_REVOLUTION;
-    private static final double ENCODER_TO_METER = ENCODER_TO_RADIAN * WHEEL_RADIUS;
+    public static final double ENCODER_TO_METER = ENCODER_TO_RADIAN * WHEEL_RADIUS;
+
+    // Encoder periods the FPGA averages for its rate measurement
+    public static final int PERIOD_SAMPLES = 4;
+    // Longer periods are a stopped wheel (s) - otherwise the FPGA keeps reporting the last period
+    public static final double MAXIMUM_PERIOD = 0.1;
 
 
     private double gyroscopeOffset = 0;
@@ -33,17 +50,34 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
     private double[] lastEncoders = new double[2];
     private double[] currentEncoders = new double[2];
 
+    // FPGA period based rates (counts per second) read with the encoders
+    private double[] currentRates = new double[2];
+
+    // When the encoders were last read
+    private long encoderMicros = 0;
+
     // Modules
     public PID motorControlLeftVelocity;
     public PID motorControlRightVelocity;
     public PID motorControlLeftPosition;
     public PID motorControlRightPosition;
     public PID robotControlTurn;
+    public VelocityEstimator leftVelocity;
+    public VelocityEstimator rightVelocity;
     public MotorGroup<T> left;
     public MotorGroup<T> right;
     public Odometry odometry;
+    public TeleopDrive teleop;
+
+    // Logs
+    private Logger logger = new Logger("drive");
+    private Logger.Site outputsLog = logger.site(Logger.Level.Debug, 500);
 
     private double currentVoltage = 12;
+
+    // Power budgeting
+    private double powerScale = 1;
+    private double demand = 0;
     private boolean check = true;
 
     public DifferentialDrive() {
@@ -58,19 +92,29 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
         motorControlRightPosition = new PID("pid_right_position", 3, 0.1, 0.2, 0);
         robotControlTurn = new PID("pid_robot_turn", 0.28, 0, 0.01, 0);
 
+        leftVelocity = new VelocityEstimator("left_velocity", PERIOD_SAMPLES);
+        rightVelocity = new VelocityEstimator("right_velocity", PERIOD_SAMPLES);
+
         odometry = new Odometry();
 
+        teleop = new TeleopDrive();
+
         // MotorGroups
         adopt(left);
         adopt(right);
         // Odometry
         adopt(odometry);
+        // Teleop
+        adopt(teleop);
         // PIDs
         adopt(motorControlLeftVelocity);
         adopt(motorControlRightVelocity);
         adopt(motorControlLeftPosition);
         adopt(motorControlRightPosition);
         adopt(robotControlTurn);
+        // Velocity estimators
+        adopt(leftVelocity);
+        adopt(rightVelocity);
 
         // Commands
         register("reset", new Function() {
@@ -83,26 +127,95 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
 
         register("turn", new Function() {
 
+            private Signature signature = new Signature("turn").number("angle");
+
             private double startingAngle = 0;
             private boolean started = false;
 
             @Override
             public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
                 updateOdometry();
                 if (!started) {
                     startingAngle = odometry.getAngle();
                 }
-                started = !driveTurn(Double.parseDouble(parameter), startingAngle);
+                started = !driveTurn(signature.getNumber(0), startingAngle);
                 updateOdometry();
                 return Result.create(!started, "Set");
             }
         });
 
+        register("tune", new Function() {
+
+            private Signature signature = new Signature("tune").word("target").choice("rule", RelayTuner.Rule.names()).optional().choice("apply", "apply");
+
+            private RelayTuner tuner = null;
+            // What the tuner was built for, another target or rule starts over
+            private String tunerTarget = null;
+            private int tunerRule = -1;
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                String target = signature.getWord(0);
+                PID pid = tunedPID(target);
+                if (pid == null)
+                    return Result.notFinished("Unknown target");
+                updateOdometry();
+                double measurement = tunedMeasurement(target);
+                if (tuner != null && (!target.equals(tunerTarget) || signature.getChoice(1) != tunerRule || tuner.isAbandoned(Clock.seconds())))
+                    tuner = null;
+                if (tuner == null) {
+                    tunerTarget = target;
+                    tunerRule = signature.getChoice(1);
+                    if (target.endsWith("velocity")) {
+                        // Oscillate around a moderate wheel speed, biased by the current feedforward
+                        double setpoint = 15;
+                        tuner = new RelayTuner(setpoint, setpoint * pid.getKF() + deadband, 2, 0.5, 4, 10);
+                    } else if (target.equals("turn")) {
+                        tuner = new RelayTuner(measurement, 0, 3, 1, 4, 10);
+                    } else {
+                        tuner = new RelayTuner(measurement, 0, 2, 0.01, 4, 10);
+                    }
+                }
+                double output = tuner.update(measurement, Clock.seconds()) / currentVoltage;
+                if (target.equals("turn")) {
+                    direct(-output, output);
+                } else {
+                    direct(output, output);
+                }
+                if (!tuner.isFinished())
+                    return Result.notFinished("Tuning");
+                // Done
+                RelayTuner finished = tuner;
+                tuner = null;
+                direct(0, 0);
+                if (finished.hasFailed())
+                    return Result.finished("Tuning failed");
+                double[] gains = finished.getGains(RelayTuner.Rule.values()[signature.getChoice(1)]);
+                double kF = target.endsWith("velocity") ? finished.getFeedForward(deadband) : pid.getKF();
+                if (signature.has(2)) {
+                    pid.reset();
+                    pid.setPIDF(gains[0], gains[1], gains[2], kF);
+                }
+                return Result.finished("Ku " + finished.getUltimateGain() + " Tu " + finished.getUltimatePeriod() + " PIDF " + gains[0] + " " + gains[1] + " " + gains[2] + " " + kF);
+            }
+        });
+
         register("direct", new Function() {
+
+            private Signature signature = new Signature("direct").number("left").number("right");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                String[] split = parameter.split(" ");
-                direct(Double.parseDouble(split[0]), Double.parseDouble(split[1]));
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                direct(signature.getNumber(0), signature.getNumber(1));
                 return Result.finished("Set");
             }
         });
@@ -110,21 +223,104 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
 
     public Odometry updateOdometry() {
 
-        if (left.hasEncoder() && right.hasEncoder()) {
+        if (hasEncoders()) {
             // Set lasts
             lastEncoders = currentEncoders;
             // Set currents
-            currentEncoders = new double[]{left.getEncoder().getRaw(), right.getEncoder().getRaw()};
+            currentEncoders = new double[]{readLeftEncoder(), readRightEncoder()};
+            currentRates[0] = readLeftRate();
+            currentRates[1] = readRightRate();
+            encoderMicros = readEncoderMicros();
             // Calculate meters
             double leftMeters = (currentEncoders[0] - lastEncoders[0]) * ENCODER_TO_METER;
             double rightMeters = (currentEncoders[1] - lastEncoders[1]) * ENCODER_TO_METER;
             // Update odometry
-            odometry.update(new double[]{leftMeters, rightMeters});
+            odometry.update(leftMeters, rightMeters, encoderMicros);
+            // Update wheel velocities
+            leftVelocity.update(currentEncoders[0], currentRates[0], encoderMicros);
+            rightVelocity.update(currentEncoders[1], currentRates[1], encoderMicros);
+            odometry.setVelocity((leftVelocity.getVelocity() + rightVelocity.getVelocity()) / 2.0 * ENCODER_TO_METER);
         }
 
         return odometry;
     }
 
+    // Encoder reads (recorded values while replaying)
+
+    public boolean hasEncoders() {
+        return Replay.isActive() || (left.hasEncoder() && right.hasEncoder());
+    }
+
+    public double readLeftEncoder() {
+        if (Replay.isActive())
+            return Replay.get("left-encoder");
+        return left.getEncoder().getRaw();
+    }
+
+    public double readRightEncoder() {
+        if (Replay.isActive())
+            return Replay.get("right-encoder");
+        return right.getEncoder().getRaw();
+    }
+
+    // FPGA period based rates in counts per second
+    public double readLeftRate() {
+        if (Replay.isActive())
+            return Replay.get("left-rate");
+        return rate(left.getEncoder());
+    }
+
+    public double readRightRate() {
+        if (Replay.isActive())
+            return Replay.get("right-rate");
+        return rate(right.getEncoder());
+    }
+
+    private static double rate(Encoder encoder) {
+        if (encoder.getStopped())
+            return 0;
+        return encoder.getRate() / encoder.getDistancePerPulse() * encoder.getEncodingScale();
+    }
+
+    // Rates used by the last odometry update
+    public double[] getRates() {
+        return currentRates;
+    }
+
+    // Time of the encoder reads (the reads are local, so it is when they happened)
+    private long readEncoderMicros() {
+        if (Replay.isActive())
+            return (long) Replay.get("encoder-time");
+        return Clock.micros();
+    }
+
+    public long getEncoderMicros() {
+        return encoderMicros;
+    }
+
+    // Continues odometry from known encoder values (used when replaying a recording)
+    public void seedOdometry(double[] encoders) {
+        lastEncoders = encoders;
+        currentEncoders = encoders;
+        leftVelocity.reset();
+        rightVelocity.reset();
+    }
+
+    // Encoder values used by the last odometry update
+    public double[] getEncoders() {
+        return currentEncoders;
+    }
+
+    // Forgets the controllers' state on mode changes (replays reset at the same points)
+    public void resetControl() {
+        teleop.reset();
+        motorControlLeftVelocity.reset();
+        motorControlRightVelocity.reset();
+        motorControlLeftPosition.reset();
+        motorControlRightPosition.reset();
+        robotControlTurn.reset();
+    }
+
     public void resetOdometry() {
         // Reset encoders
         left.resetEncoder();
@@ -133,6 +329,8 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
         // Reset variables
         lastEncoders = new double[2];
         currentEncoders = new double[2];
+        leftVelocity.reset();
+        rightVelocity.reset();
 
         // Reset odometry
         odometry.reset();
@@ -141,6 +339,43 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
         updateOdometry();
     }
 
+    private PID tunedPID(String target) {
+        switch (target) {
+            case "left_velocity":
+                return motorControlLeftVelocity;
+            case "right_velocity":
+                return motorControlRightVelocity;
+            case "left_position":
+                return motorControlLeftPosition;
+            case "right_position":
+                return motorControlRightPosition;
+            case "turn":
+                return robotControlTurn;
+        }
+        return null;
+    }
+
+    private double tunedMeasurement(String target) {
+        switch (target) {
+            case "left_velocity":
+                return left.getEncoder().getRate() * left.getEncoder().getEncodingScale() * ENCODER_TO_RADIAN;
+            case "right_velocity":
+                return right.getEncoder().getRate() * right.getEncoder().getEncodingScale() * ENCODER_TO_RADIAN;
+            case "left_position":
+                return readLeftEncoder() * ENCODER_TO_METER;
+            case "right_position":
+                return readRightEncoder() * ENCODER_TO_METER;
+        }
+        return odometry.getAngle();
+    }
+
+    // Telemetry, at its own rate
+    public void publish() {
+        odometry.publish();
+        leftVelocity.publish();
+        rightVelocity.publish();
+    }
+
     public Odometry getOdometry() {
         return odometry;
     }
@@ -150,6 +385,10 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
             this.currentVoltage = voltage;
     }
 
+    public double getVoltage() {
+        return currentVoltage;
+    }
+
     private double sign(double input) {
         if (input > 0)
             return 1;
@@ -178,7 +417,12 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
 
     public void driveManual(double speed, double turn) {
         direct((speed + turn), (speed - turn));
-        updateOdometry();
+    }
+
+    public void driveTank(double leftSpeed, double rightSpeed) {
+        // Shaping, slew limiting and heading hold
+        double[] outputs = teleop.calculate(leftSpeed, rightSpeed, odometry.getAngle());
+        direct(outputs[0], outputs[1]);
     }
 
     public void driveVector(double velocity, double omega) {
@@ -188,7 +432,6 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
         motorOutputs[0] = General.deadband(motorOutputs[0], 0.07);
         motorOutputs[1] = General.deadband(motorOutputs[1], 0.07);
         direct(motorOutputs[0], motorOutputs[1]);
-        updateOdometry();
     }
 
     // Output calculations
@@ -199,15 +442,15 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
         motorControlLeftVelocity.updateDelta();
         motorControlRightVelocity.updateDelta();
         // Calculate
-        double motorOutputLeft = motorControlLeftVelocity.PIDVelocity(left.getEncoder().getRaw() * ENCODER_TO_RADIAN, wheelSetPoints[0]);
-        double motorOutputRight = motorControlRightVelocity.PIDVelocity(right.getEncoder().getRaw() * ENCODER_TO_RADIAN, wheelSetPoints[1]);
+        double motorOutputLeft = motorControlLeftVelocity.PIDVelocity(readLeftEncoder() * ENCODER_TO_RADIAN, wheelSetPoints[0], leftVelocity.getVelocity() * ENCODER_TO_RADIAN);
+        double motorOutputRight = motorControlRightVelocity.PIDVelocity(readRightEncoder() * ENCODER_TO_RADIAN, wheelSetPoints[1], rightVelocity.getVelocity() * ENCODER_TO_RADIAN);
         // Add friction voltage
         motorOutputLeft += (deadband * sign(motorOutputLeft));
         motorOutputRight += (deadband * sign(motorOutputRight));
         // Divide
         motorOutputLeft /= currentVoltage;
         motorOutputRight /= currentVoltage;
-        log("L " + motorOutputLeft + " R " + motorOutputRight + " V " + currentVoltage);
+        outputsLog.log("L %f R %f V %f", motorOutputLeft, motorOutputRight, currentVoltage);
         // Return tuple
         return new double[]{motorOutputLeft, motorOutputRight};
     }
@@ -223,17 +466,38 @@ public class DifferentialDrive<T extends SpeedController> extends FRCModule {
     }
 
     public double[] wheelsToRobot(double left, double right) {
-        // Assign
-        double linear = (right + left) * WHEEL_RADIUS / 2.0;
-        double angular = (right - left) * WHEEL_RADIUS / WHEEL_DISTANCE;
+        double[] robot = new double[2];
+        wheelsToRobot(left, right, robot);
         // Return tuple
-        return new double[]{linear, angular};
+        return robot;
+    }
+
+    // Same, into an existing array (linear, angular)
+    public void wheelsToRobot(double left, double right, double[] robot) {
+        robot[0] = (right + left) * WHEEL_RADIUS / 2.0;
+        robot[1] = (right - left) * WHEEL_RADIUS / WHEEL_DISTANCE;
+    }
+
+    // Chassis velocity (m/s, rad/s) from the last odometry updates
+    public void getChassisVelocity(double[] velocity) {
+        wheelsToRobot(leftVelocity.getVelocity() * ENCODER_TO_RADIAN, rightVelocity.getVelocity() * ENCODER_TO_RADIAN, velocity);
     }
 
     // Robot outputs
 
+    public void setPowerScale(double powerScale) {
+        // A broken budget must not reach the motors
+        this.powerScale = Double.isNaN(powerScale) ? 1 : Math.max(0, Math.min(1, powerScale));
+    }
+
+    // Requested output (before power scaling) of both sides
+    public double getDemand() {
+        return demand;
+    }
+
     public void direct(double leftSpeed, double rightSpeed) {
-        left.applyPower(leftSpeed);
-        right.applyPower(rightSpeed);
+        demand = Math.abs(leftSpeed) + Math.abs(rightSpeed);
+        left.applyPower(leftSpeed * powerScale);
+        right.applyPower(rightSpeed * powerScale);
     }
 }
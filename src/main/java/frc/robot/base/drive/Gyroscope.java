@@ -1,33 +1,56 @@
 package frc.robot.base.drive;
 
 import com.ctre.phoenix.sensors.PigeonIMU;
-import com.kauailabs.navx.frc.AHRS;
-import edu.wpi.first.wpilibj.I2C;
-import edu.wpi.first.wpilibj.Timer;
+import frc.robot.base.recorder.Replay;
+import frc.robot.base.utils.Clock;
 
 public abstract class Gyroscope {
 
-    private static PigeonIMU pigeon = new PigeonIMU(30);
+    private static PigeonIMU pigeon;
+    private static long readMicros = 0;
+
+    // Created on first use, so replays never touch the hardware
+    public static PigeonIMU pigeon() {
+        if (pigeon == null)
+            pigeon = new PigeonIMU(30);
+        return pigeon;
+    }
 
     public static double getAngle() {
+        if (Replay.isActive())
+            return Replay.get("angle");
         double[] ypr = new double[3];
-        pigeon.getYawPitchRoll(ypr);
+        pigeon().getYawPitchRoll(ypr);
+        readMicros = Clock.micros();
         return ypr[0];
     }
 
+    // When getAngle() last read the yaw
+    public static long getReadMicros() {
+        if (Replay.isActive())
+            return (long) Replay.get("gyro-time");
+        return readMicros;
+    }
+
     public static double getAngularVelocity() {
+        if (Replay.isActive())
+            return Replay.get("omega");
         double[] xyz = new double[3];
-        pigeon.getRawGyro(xyz);
+        pigeon().getRawGyro(xyz);
         return xyz[2];
     }
 
     public static void setAngle(double angle) {
-        pigeon.setYaw(angle);
+        if (Replay.isActive())
+            return;
+        pigeon().setYaw(angle);
     }
 
     public static void reset() {
-        pigeon.setYaw(0);
-        pigeon.setFusedHeading(0);
+        if (Replay.isActive())
+            return;
+        pigeon().setYaw(0);
+        pigeon().setFusedHeading(0);
 //        pigeon.enterCalibrationMode(PigeonIMU.CalibrationMode.BootTareGyroAccel);
     }
-}
\ No newline at end of file
+}
@@ -4,8 +4,7 @@ import com.ga2230.shleam.advanced.frc.FRCModule;
 import com.ga2230.shleam.base.structure.Function;
 import com.ga2230.shleam.base.structure.Result;
 import frc.robot.base.control.path.Point;
-
-import javax.annotation.Nullable;
+import frc.robot.base.utils.Signature;
 
 /**
  * Copyright (c) 2019 General Angels
@@ -14,8 +13,26 @@ import javax.annotation.Nullable;
 
 public class Odometry extends FRCModule {
 
+    // Age of a Pigeon yaw sample when its status frame arrives (fusion and CAN transport, estimated)
+    private static final long GYRO_LATENCY_MICROS = 2000;
+    // How far the heading may be extrapolated past the newest gyro sample
+    private static final long MAXIMUM_EXTRAPOLATION_MICROS = 50000;
+    // A heading change larger than this between updates is a jump (angle set, reset), not a turn
+    private static final double MAXIMUM_TURN = 45;
+
     private double x, y, distance;
     private double angle, curvature;
+    private double velocity;
+
+    // Last two distinct gyro samples (sample time estimate, yaw)
+    private long[] gyroMicros = new long[2];
+    private double[] gyroAngles = new double[2];
+    private int gyroSamples = 0;
+    private long lastReadMicros = -1;
+
+    // Heading at the time of the last encoder sample, the pose refers to that time
+    private double heading = 0;
+    private long headingMicros = -1;
 
     public Odometry() {
         super("odometry");
@@ -31,26 +48,35 @@ public class Odometry extends FRCModule {
         });
 
         register("coordinates", new Function() {
+
+            private Signature signature = new Signature("coordinates").number("x").number("y");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                // Gets x, y and sets the x and y
-                String[] coordinates = parameter.split(",");
-                if (coordinates.length == 2) {
-                    // Set
-                    Odometry.this.x = (Double.parseDouble(coordinates[0].trim()));
-                    Odometry.this.y = (Double.parseDouble(coordinates[1].trim()));
-                    // Return success
-                    return Result.finished("Odometry set");
-                }
-                return Result.notFinished("Wrong parameters");
+                // Gets x, y (comma or space separated) and sets the x and y
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                // Set
+                Odometry.this.x = signature.getNumber(0);
+                Odometry.this.y = signature.getNumber(1);
+                // Return success
+                return Result.finished("Odometry set");
             }
         });
 
         register("angle", new Function() {
+
+            private Signature signature = new Signature("angle").number("angle");
+
             @Override
             public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
                 // Update angle
-                Gyroscope.setAngle(Double.parseDouble(parameter));
+                Gyroscope.setAngle(signature.getNumber(0));
+                realign();
                 // Return success
                 return Result.finished("Angle set");
             }
@@ -64,33 +90,84 @@ public class Odometry extends FRCModule {
         Odometry.this.y = 0;
         Odometry.this.angle = 0;
         Odometry.this.curvature = 0;
+        Odometry.this.velocity = 0;
+        Odometry.this.heading = 0;
+        realign();
         // Reset gyroscope
         Gyroscope.reset();
     }
 
-    public void update(@Nullable double[] distanceDeltas) {
+    // Wheel distance deltas (meters) and the time the encoders were sampled
+    public void update(double leftDelta, double rightDelta, long encoderMicros) {
         // Update gyro values
         this.angle = Gyroscope.getAngle();
         this.curvature = Gyroscope.getAngularVelocity();
-        // Make sure we can trust the deltas
-        if (distanceDeltas != null && distanceDeltas.length == 2) {
-            // Update encoder values
-            this.distance = (distanceDeltas[0] + distanceDeltas[1]) / 2.0;
-            this.x += this.distance * Math.cos(Math.toRadians(this.angle));
-            this.y += this.distance * Math.sin(Math.toRadians(this.angle));
+        sampleGyro(Gyroscope.getReadMicros());
+        // Heading when the encoders were sampled
+        double current = headingAt(encoderMicros);
+        double turn = current - heading;
+        if (headingMicros < 0 || encoderMicros <= headingMicros || Math.abs(turn) > MAXIMUM_TURN) {
+            // No previous heading to integrate from (first update, jump, bogus timestamps)
+            turn = 0;
+        }
+        // Move along the arc, the chord from the start heading rotated by half the turn
+        this.distance = (leftDelta + rightDelta) / 2.0;
+        double halfTurn = Math.toRadians(turn) / 2;
+        double chord = Math.abs(halfTurn) < 1e-9 ? this.distance : this.distance * Math.sin(halfTurn) / halfTurn;
+        double direction = Math.toRadians(current) - halfTurn;
+        this.x += chord * Math.cos(direction);
+        this.y += chord * Math.sin(direction);
+        this.heading = current;
+        this.headingMicros = encoderMicros;
+    }
+
+    private void sampleGyro(long readMicros) {
+        // A new frame shows up as a new yaw, it arrived somewhere since the previous read
+        if (gyroSamples == 0 || this.angle != gyroAngles[1]) {
+            long arrival = lastReadMicros < 0 || readMicros < lastReadMicros ? readMicros : readMicros - (readMicros - lastReadMicros) / 2;
+            gyroMicros[0] = gyroMicros[1];
+            gyroAngles[0] = gyroAngles[1];
+            gyroMicros[1] = arrival - GYRO_LATENCY_MICROS;
+            gyroAngles[1] = this.angle;
+            gyroSamples = Math.min(gyroSamples + 1, 2);
         }
-        // Write to dictionary
-        updateDictionary();
+        lastReadMicros = readMicros;
     }
 
-    private void updateDictionary() {
+    private double headingAt(long micros) {
+        // Interpolate between the last two samples
+        if (gyroSamples == 2 && micros <= gyroMicros[1] && gyroMicros[1] > gyroMicros[0]) {
+            double fraction = Math.max(0, (double) (micros - gyroMicros[0]) / (gyroMicros[1] - gyroMicros[0]));
+            return gyroAngles[0] + (gyroAngles[1] - gyroAngles[0]) * fraction;
+        }
+        // Extrapolate past the newest one with the measured rate
+        long ahead = Math.max(-MAXIMUM_EXTRAPOLATION_MICROS, Math.min(MAXIMUM_EXTRAPOLATION_MICROS, micros - gyroMicros[1]));
+        return gyroAngles[1] + this.curvature * ahead / 1e6;
+    }
+
+    // Forgets the gyro history, used when the yaw jumps
+    private void realign() {
+        gyroSamples = 0;
+        lastReadMicros = -1;
+        headingMicros = -1;
+    }
+
+    // Writes to the dictionary, at the telemetry rate rather than every update
+    public void publish() {
         set("theta", String.valueOf(this.angle));
+        set("heading", String.valueOf(this.heading));
+        set("velocity", String.valueOf(this.velocity));
         set("omega", String.valueOf(this.curvature));
         set("distance", String.valueOf(this.distance));
         set("x", String.valueOf(this.x));
         set("y", String.valueOf(this.y));
     }
 
+    public void setPosition(double x, double y) {
+        this.x = x;
+        this.y = y;
+    }
+
     public double getX() {
         return this.x;
     }
@@ -99,19 +176,34 @@ public class Odometry extends FRCModule {
         return this.y;
     }
 
+    // Latest gyro yaw
     public double getAngle() {
         return this.angle;
     }
 
+    // Heading aligned with the position (at the last encoder sample)
+    public double getHeading() {
+        return this.heading;
+    }
+
     public double getCurvature() {
         return this.curvature;
     }
 
+    // Linear velocity (m/s) from the wheel velocity estimates
+    public void setVelocity(double velocity) {
+        this.velocity = velocity;
+    }
+
+    public double getVelocity() {
+        return velocity;
+    }
+
     public double getDistance() {
         return distance;
     }
 
     public Point toPoint() {
-        return new Point(x, y, angle, curvature);
+        return new Point(x, y, heading, curvature);
     }
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package frc.robot.base.drive;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import frc.robot.base.control.PID;
+import frc.robot.base.utils.Clock;
+import frc.robot.base.utils.General;
+import frc.robot.base.utils.Signature;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class TeleopDrive extends FRCModule {
+
+    // Straight detection
+    private static final double STRAIGHT_TOLERANCE = 0.08; // Maximum stick difference to count as "straight"
+    private static final double STRAIGHT_MINIMUM_SPEED = 0.1; // Minimum average stick to hold heading
+    private static final double MAXIMUM_CORRECTION = 0.3;
+
+    private double deadband = 0.05;
+    private double exponent = 2; // 1 = linear, 2 = squared, 3 = cubed
+    private double slewRate = 3; // Maximum output change per second, 0 disables the limit
+
+    private boolean holdEnabled = true;
+    private boolean holding = false;
+    private double heading = 0;
+
+    private double leftOutput = 0;
+    private double rightOutput = 0;
+
+    private double previousTime = Clock.cycleSeconds();
+
+    private PID headingControl;
+
+    public TeleopDrive() {
+        super("teleop");
+
+        headingControl = new PID("pid_heading", 0.03, 0, 0.002, 0);
+
+        adopt(headingControl);
+
+        register("shaping", new Function() {
+
+            private Signature signature = new Signature("shaping").number("deadband").number("exponent").number("slew");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                setShaping(signature.getNumber(0), signature.getNumber(1), signature.getNumber(2));
+                return Result.finished("Set");
+            }
+        });
+
+        register("hold", new Function() {
+
+            private Signature signature = new Signature("hold").choice("state", "off", "on");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                setHoldEnabled(signature.getChoice(0) == 1);
+                return Result.finished(holdEnabled ? "Holding" : "Not holding");
+            }
+        });
+    }
+
+    public void setShaping(double deadband, double exponent, double slewRate) {
+        this.deadband = Math.min(Math.max(deadband, 0), 0.9);
+        this.exponent = Math.max(exponent, 1);
+        this.slewRate = Math.max(slewRate, 0);
+    }
+
+    public void setHoldEnabled(boolean holdEnabled) {
+        this.holdEnabled = holdEnabled;
+        this.holding = false;
+    }
+
+    public void reset() {
+        holding = false;
+        leftOutput = 0;
+        rightOutput = 0;
+        previousTime = Clock.cycleSeconds();
+    }
+
+    public double[] calculate(double left, double right, double angle) {
+        // Time delta
+        double time = Clock.cycleSeconds();
+        double timeDelta = time - previousTime;
+        previousTime = time;
+        // Shape inputs
+        left = shape(left);
+        right = shape(right);
+        // Slew limit
+        leftOutput = slew(leftOutput, left, timeDelta);
+        rightOutput = slew(rightOutput, right, timeDelta);
+        // Check for straight intent (using raw shaped inputs, so slewing does not break the detection)
+        double speed = (left + right) / 2.0;
+        boolean straight = holdEnabled && Math.abs(left - right) < STRAIGHT_TOLERANCE && Math.abs(speed) > STRAIGHT_MINIMUM_SPEED;
+        double correction = 0;
+        if (straight) {
+            if (!holding) {
+                // Lock heading on entry
+                heading = angle;
+                holding = true;
+                headingControl.reset();
+            }
+            headingControl.updateDelta();
+            correction = headingControl.PIDPosition(angle, heading);
+            correction = Math.max(-MAXIMUM_CORRECTION, Math.min(MAXIMUM_CORRECTION, correction));
+            // Drive both sides at the same (averaged) speed while straight
+            double average = (leftOutput + rightOutput) / 2.0;
+            leftOutput = average;
+            rightOutput = average;
+        } else {
+            holding = false;
+        }
+        set("holding", String.valueOf(holding));
+        set("heading", String.valueOf(heading));
+        set("correction", String.valueOf(correction));
+        // Positive yaw is counter-clockwise, so a positive correction speeds up the right side
+        return new double[]{leftOutput - correction, rightOutput + correction};
+    }
+
+    private double shape(double value) {
+        value = General.deadband(value, deadband);
+        if (value == 0)
+            return 0;
+        // Rescale so the output starts from 0 right after the deadband
+        double magnitude = (Math.abs(value) - deadband) / (1 - deadband);
+        magnitude = Math.pow(Math.min(magnitude, 1), exponent);
+        return Math.copySign(magnitude, value);
+    }
+
+    private double slew(double current, double target, double timeDelta) {
+        if (slewRate <= 0 || timeDelta <= 0)
+            return target;
+        double maximumChange = slewRate * timeDelta;
+        return current + Math.max(-maximumChange, Math.min(maximumChange, target - current));
+    }
+}
@@ -0,0 +1,236 @@
+package frc.robot.base.power;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import edu.wpi.first.wpilibj.PowerDistributionPanel;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class PowerManager extends FRCModule {
+
+    private static final int CHANNELS = 16;
+    private static final long SAMPLE_NANOS = 10 * 1000 * 1000;
+
+    // Voltage we plan to stay above (the RIO browns out at 6.8V)
+    private static final double MINIMUM_VOLTAGE = 8;
+
+    // Battery model estimation (recursive least squares on V = Voc - R * I)
+    private static final double FORGETTING = 0.995;
+    private static final double MINIMUM_RESISTANCE = 0.005;
+    private static final double MAXIMUM_RESISTANCE = 0.1;
+    private static final double MINIMUM_OPEN_CIRCUIT = 10;
+    private static final double MAXIMUM_OPEN_CIRCUIT = 13.5;
+    // A constant current says nothing about R, the estimate only moves once the current changed by this much (amps)
+    private static final double MINIMUM_EXCITATION = 1;
+    // Bounds the covariance the forgetting factor inflates, so the first step after an idle stretch does not jump
+    private static final double MAXIMUM_TRACE = 2;
+
+    // Model used before the first estimate and after a bad one
+    private static final double OPEN_CIRCUIT = 12.5;
+    private static final double RESISTANCE = 0.02;
+
+    private PowerDistributionPanel pdp;
+
+    // Latest sample, swapped as a whole by the sampler
+    private volatile Sample sample = new Sample();
+
+    // Estimation state (sampler thread)
+    private double openCircuitVoltage = OPEN_CIRCUIT;
+    private double resistance = RESISTANCE;
+    private double[][] covariance = new double[2][2];
+    private double lastCurrent = Double.NaN;
+
+    private volatile double estimatedOpenCircuitVoltage = OPEN_CIRCUIT;
+    private volatile double estimatedResistance = RESISTANCE;
+
+    private ArrayList<Budget> budgets = new ArrayList<>();
+
+    private double availableCurrent = 0;
+
+    public PowerManager(int module) {
+        super("power");
+
+        pdp = new PowerDistributionPanel(module);
+
+        resetEstimate();
+
+        Thread sampler = new Thread(this::sample, "power");
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    public Budget budget(String name, int priority, int... channels) {
+        Budget budget = new Budget(name, priority, channels);
+        // Keep sorted by priority (highest first)
+        int index = 0;
+        while (index < budgets.size() && budgets.get(index).priority >= priority)
+            index++;
+        budgets.add(index, budget);
+        return budget;
+    }
+
+    // Called once per cycle from the control thread - allocates the current budget by priority
+    public void update() {
+        Sample sample = this.sample;
+        double openCircuitVoltage = estimatedOpenCircuitVoltage;
+        double resistance = estimatedResistance;
+        // Total current the battery can give while staying above the minimum voltage
+        availableCurrent = Math.max((openCircuitVoltage - MINIMUM_VOLTAGE) / resistance, 0);
+        // No budgeting on a broken estimate
+        if (!Double.isFinite(availableCurrent))
+            availableCurrent = Double.POSITIVE_INFINITY;
+        double remaining = availableCurrent;
+        for (Budget budget : budgets) {
+            double measured = 0;
+            for (int channel : budget.channels)
+                measured += sample.currents[channel];
+            budget.measured = measured;
+            double demand = Math.max(budget.requested, 0);
+            double granted = Math.min(demand, remaining);
+            budget.scale = demand > 0 ? granted / demand : 1;
+            if (Double.isNaN(budget.scale))
+                budget.scale = 1;
+            remaining -= granted;
+            budget.requested = 0;
+            set(budget.name + "-current", String.valueOf(measured));
+            set(budget.name + "-scale", String.valueOf(budget.scale));
+        }
+        set("voltage", String.valueOf(sample.voltage));
+        set("current", String.valueOf(sample.totalCurrent));
+        set("resistance", String.valueOf(resistance));
+        set("open-circuit", String.valueOf(openCircuitVoltage));
+        set("available", String.valueOf(availableCurrent));
+    }
+
+    public double getVoltage() {
+        return sample.voltage;
+    }
+
+    public double getTotalCurrent() {
+        return sample.totalCurrent;
+    }
+
+    public double getResistance() {
+        return estimatedResistance;
+    }
+
+    // Predicted battery voltage if the given current is drawn on top of the present load (used to hold back spin-ups)
+    public double predictVoltage(double additionalCurrent) {
+        return estimatedOpenCircuitVoltage - estimatedResistance * (sample.totalCurrent + additionalCurrent);
+    }
+
+    private void sample() {
+        while (true) {
+            Sample sample = new Sample();
+            try {
+                sample.voltage = pdp.getVoltage();
+                for (int channel = 0; channel < CHANNELS; channel++) {
+                    sample.currents[channel] = pdp.getCurrent(channel);
+                    sample.totalCurrent += sample.currents[channel];
+                }
+                estimate(sample.totalCurrent, sample.voltage);
+                this.sample = sample;
+            } catch (Exception ignored) {
+                // Keep the last sample
+            }
+            LockSupport.parkNanos(SAMPLE_NANOS);
+        }
+    }
+
+    private void estimate(double current, double voltage) {
+        if (voltage <= 0 || !Double.isFinite(voltage) || !Double.isFinite(current))
+            return;
+        // Without excitation the forgetting factor only inflates the covariance
+        if (!Double.isNaN(lastCurrent) && Math.abs(current - lastCurrent) < MINIMUM_EXCITATION)
+            return;
+        lastCurrent = current;
+        // Regressor x = [1, -I], parameters = [Voc, R]
+        double x0 = 1, x1 = -current;
+        double px0 = covariance[0][0] * x0 + covariance[0][1] * x1;
+        double px1 = covariance[1][0] * x0 + covariance[1][1] * x1;
+        double denominator = FORGETTING + x0 * px0 + x1 * px1;
+        double gain0 = px0 / denominator;
+        double gain1 = px1 / denominator;
+        double error = voltage - (openCircuitVoltage * x0 + resistance * x1);
+        openCircuitVoltage += gain0 * error;
+        resistance += gain1 * error;
+        // P = (P - K * x' * P) / lambda
+        double p00 = (covariance[0][0] - gain0 * px0) / FORGETTING;
+        double p01 = (covariance[0][1] - gain0 * px1) / FORGETTING;
+        double p10 = (covariance[1][0] - gain1 * px0) / FORGETTING;
+        double p11 = (covariance[1][1] - gain1 * px1) / FORGETTING;
+        covariance[0][0] = p00;
+        covariance[0][1] = p01;
+        covariance[1][0] = p10;
+        covariance[1][1] = p11;
+        double trace = p00 + p11;
+        if (!Double.isFinite(trace) || !Double.isFinite(openCircuitVoltage) || !Double.isFinite(resistance)) {
+            resetEstimate();
+            return;
+        }
+        if (trace > MAXIMUM_TRACE) {
+            for (double[] row : covariance)
+                for (int i = 0; i < row.length; i++)
+                    row[i] *= MAXIMUM_TRACE / trace;
+        }
+        // Keep the model physical
+        openCircuitVoltage = Math.max(MINIMUM_OPEN_CIRCUIT, Math.min(MAXIMUM_OPEN_CIRCUIT, openCircuitVoltage));
+        resistance = Math.max(MINIMUM_RESISTANCE, Math.min(MAXIMUM_RESISTANCE, resistance));
+        estimatedOpenCircuitVoltage = openCircuitVoltage;
+        estimatedResistance = resistance;
+    }
+
+    private void resetEstimate() {
+        openCircuitVoltage = OPEN_CIRCUIT;
+        resistance = RESISTANCE;
+        covariance[0][0] = 1;
+        covariance[0][1] = 0;
+        covariance[1][0] = 0;
+        covariance[1][1] = 0.01;
+        lastCurrent = Double.NaN;
+        estimatedOpenCircuitVoltage = openCircuitVoltage;
+        estimatedResistance = resistance;
+    }
+
+    private static class Sample {
+        private double voltage = 12;
+        private double totalCurrent = 0;
+        private double[] currents = new double[CHANNELS];
+    }
+
+    public static class Budget {
+
+        private String name;
+        private int priority;
+        private int[] channels;
+
+        private double requested = 0;
+        private double measured = 0;
+        private double scale = 1;
+
+        private Budget(String name, int priority, int[] channels) {
+            this.name = name;
+            this.priority = priority;
+            this.channels = channels;
+        }
+
+        // Current (amps) the subsystem is about to draw this cycle
+        public void request(double current) {
+            requested = current;
+        }
+
+        // Fraction (0 to 1) of the last request that fits in the budget
+        public double getScale() {
+            return scale;
+        }
+
+        public double getMeasured() {
+            return measured;
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package frc.robot.base.recorder;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import frc.robot.base.utils.Clock;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class FlightRecorder extends FRCModule {
+
+    /*
+     * File layout (big endian):
+     * int magic, int version, int channel count, int record size, int data offset, int record count,
+     * channel names (short length + UTF-8 bytes each), zero padding up to the data offset,
+     * records: long timestamp (microseconds), int cycle, int reserved, double value per channel.
+     */
+
+    public static final int MAGIC = 0x47413230; // "GA20"
+    public static final int VERSION = 1;
+    public static final int RECORD_HEADER = 16;
+    public static final int COUNT_OFFSET = 20;
+
+    // Space all recordings may take, the RIO's own flash is small and shared with the deploy
+    private static final long USB_CAPACITY = 1024L * 1024 * 1024;
+    private static final long LOCAL_CAPACITY = 48L * 1024 * 1024;
+    private static final long FILE_SIZE = 16 * 1024 * 1024;
+    // At least this many files fit in the capacity (current, next and a few finished ones)
+    private static final int MINIMUM_FILES = 4;
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+    private static final long FLUSH_NANOS = 1000 * 1000 * 1000;
+    private static final int PUBLISH_CYCLES = 50;
+
+    private static final String USB_DIRECTORY = "/u/recordings";
+    private static final String LOCAL_DIRECTORY = "/home/lvuser/recordings";
+
+    private ArrayList<String> channels = new ArrayList<>();
+    private double[] values = new double[0];
+    private int recordSize = RECORD_HEADER;
+    private int dataOffset = 0;
+    private byte[] header;
+
+    // Owned by the control thread
+    private MappedByteBuffer buffer;
+    private int count = 0;
+    private int cycle = 0;
+
+    // Handed between the control thread and the writer
+    private volatile MappedByteBuffer next;
+    private volatile MappedByteBuffer retired;
+    private volatile MappedByteBuffer current;
+
+    // Files of the mapped buffers, to keep them out of rotation
+    private volatile File currentFile;
+    private volatile File nextFile;
+
+    private volatile boolean running = false;
+    // A writer only runs while its generation is the latest
+    private volatile int generation = 0;
+    private volatile long dropped = 0;
+    private volatile long files = 0;
+
+    private File directory;
+    private long capacity;
+    private long fileSize;
+    private Thread writer;
+
+    public FlightRecorder() {
+        super("recorder");
+
+        register("start", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                return Result.create(start(), running ? "Recording" : "Failed");
+            }
+        });
+
+        register("stop", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                stop();
+                return Result.finished("Stopped");
+            }
+        });
+    }
+
+    public int channel(String name) {
+        // The schema is fixed once recording started
+        if (running)
+            return -1;
+        int index = channels.indexOf(name);
+        if (index >= 0)
+            return index;
+        channels.add(name);
+        values = Arrays.copyOf(values, channels.size());
+        return channels.size() - 1;
+    }
+
+    public void put(int channel, double value) {
+        if (channel >= 0 && channel < values.length)
+            values[channel] = value;
+    }
+
+    public boolean isRecording() {
+        return running;
+    }
+
+    public boolean start() {
+        if (running)
+            return true;
+        // Pick the USB stick if one is mounted
+        boolean usb = new File(USB_DIRECTORY).getParentFile().exists();
+        directory = new File(usb ? USB_DIRECTORY : LOCAL_DIRECTORY);
+        capacity = usb ? USB_CAPACITY : LOCAL_CAPACITY;
+        fileSize = Math.min(FILE_SIZE, capacity / MINIMUM_FILES);
+        if (!directory.exists() && !directory.mkdirs()) {
+            log("Recorder directory creation failure: " + directory);
+            return false;
+        }
+        // Build the schema header
+        recordSize = RECORD_HEADER + values.length * Double.BYTES;
+        header = createHeader();
+        dataOffset = header.length;
+        try {
+            currentFile = newFile();
+            buffer = createFile(currentFile);
+        } catch (Exception exception) {
+            log("Recorder file creation failure: " + exception.toString());
+            return false;
+        }
+        current = buffer;
+        next = null;
+        nextFile = null;
+        retired = null;
+        count = 0;
+        running = true;
+        int generation = ++this.generation;
+        writer = new Thread(() -> write(generation), "recorder");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+        return true;
+    }
+
+    public void stop() {
+        running = false;
+        if (writer == null)
+            return;
+        // Wait for the writer, so a quick start() never has two of them sharing the buffers
+        LockSupport.unpark(writer);
+        try {
+            writer.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        if (writer.isAlive())
+            return;
+        // The prepared file was never written to
+        File unused = nextFile;
+        next = null;
+        nextFile = null;
+        if (unused != null && !unused.delete())
+            log("Recorder cleanup failure: " + unused);
+    }
+
+    // Called once per cycle from the control thread, only copies values into the mapped file
+    public void commit() {
+        cycle++;
+        if (!running)
+            return;
+        if (cycle % PUBLISH_CYCLES == 0) {
+            set("dropped", String.valueOf(dropped));
+            set("files", String.valueOf(files));
+        }
+        if (buffer.remaining() < recordSize) {
+            // Swap to the file prepared by the writer
+            MappedByteBuffer prepared = next;
+            if (prepared == null || retired != null) {
+                dropped++;
+                return;
+            }
+            next = null;
+            currentFile = nextFile;
+            nextFile = null;
+            retired = buffer;
+            buffer = prepared;
+            current = buffer;
+            count = 0;
+            LockSupport.unpark(writer);
+        }
+        buffer.putLong(Clock.cycleMicros());
+        buffer.putInt(cycle);
+        buffer.putInt(0);
+        for (double value : values)
+            buffer.putDouble(value);
+        buffer.putInt(COUNT_OFFSET, ++count);
+    }
+
+    private void write(int generation) {
+        long lastFlush = System.nanoTime();
+        while (running && generation == this.generation) {
+            try {
+                // Prepare the next file ahead of time
+                if (next == null) {
+                    File file = newFile();
+                    MappedByteBuffer prepared = createFile(file);
+                    nextFile = file;
+                    next = prepared;
+                    rotate();
+                }
+                // Flush and release a finished file
+                MappedByteBuffer finished = retired;
+                if (finished != null) {
+                    finished.force();
+                    retired = null;
+                }
+                // Periodic flush
+                if (System.nanoTime() - lastFlush > FLUSH_NANOS) {
+                    current.force();
+                    lastFlush = System.nanoTime();
+                }
+            } catch (Exception exception) {
+                log("Recorder failure: " + exception.toString());
+                running = false;
+            }
+            LockSupport.parkNanos(FLUSH_NANOS / 4);
+        }
+        // Final flush
+        if (current != null)
+            current.force();
+    }
+
+    private File newFile() {
+        return new File(directory, "recording-" + System.currentTimeMillis() + "-" + files + ".bin");
+    }
+
+    private MappedByteBuffer createFile(File file) throws Exception {
+        try (RandomAccessFile access = new RandomAccessFile(file, "rw")) {
+            // Preallocate, so the control thread never extends the file
+            access.setLength(fileSize);
+            MappedByteBuffer mapped = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            mapped.put(header);
+            mapped.position(dataOffset);
+            files++;
+            return mapped;
+        }
+    }
+
+    private void rotate() {
+        File[] recordings = directory.listFiles((dir, name) -> name.startsWith("recording-") && name.endsWith(".bin"));
+        if (recordings == null)
+            return;
+        long total = 0;
+        for (File recording : recordings)
+            total += recording.length();
+        // Oldest first, until everything fits in the capacity
+        Arrays.sort(recordings, (first, second) -> Long.compare(first.lastModified(), second.lastModified()));
+        for (int i = 0; i < recordings.length && total > capacity; i++) {
+            if (recordings[i].equals(currentFile) || recordings[i].equals(nextFile))
+                continue;
+            long length = recordings[i].length();
+            if (recordings[i].delete()) {
+                total -= length;
+            } else {
+                log("Recorder rotation failure: " + recordings[i]);
+            }
+        }
+    }
+
+    private byte[] createHeader() {
+        int length = 24;
+        byte[][] names = new byte[channels.size()][];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = channels.get(i).getBytes(StandardCharsets.UTF_8);
+            length += Short.BYTES + names[i].length;
+        }
+        // Align the records to 8 bytes
+        length = (length + 7) & ~7;
+        ByteBuffer header = ByteBuffer.allocate(length);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(names.length);
+        header.putInt(recordSize);
+        header.putInt(length);
+        header.putInt(0);
+        for (byte[] name : names) {
+            header.putShort((short) name.length);
+            header.put(name);
+        }
+        return header.array();
+    }
+}
@@ -0,0 +1,74 @@
+package frc.robot.base.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Recording {
+
+    private String[] channels;
+    private int recordSize;
+    private int dataOffset;
+    private int count;
+
+    private MappedByteBuffer buffer;
+
+    public Recording(File file) throws IOException {
+        try (RandomAccessFile access = new RandomAccessFile(file, "r")) {
+            buffer = access.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, access.length());
+        }
+        // Header (see FlightRecorder)
+        if (buffer.getInt() != FlightRecorder.MAGIC)
+            throw new IOException("Not a recording: " + file);
+        if (buffer.getInt() != FlightRecorder.VERSION)
+            throw new IOException("Unsupported recording version: " + file);
+        channels = new String[buffer.getInt()];
+        recordSize = buffer.getInt();
+        dataOffset = buffer.getInt();
+        count = buffer.getInt();
+        for (int i = 0; i < channels.length; i++) {
+            byte[] name = new byte[buffer.getShort()];
+            buffer.get(name);
+            channels[i] = new String(name, StandardCharsets.UTF_8);
+        }
+    }
+
+    public String[] getChannels() {
+        return channels;
+    }
+
+    public int channel(String name) {
+        for (int i = 0; i < channels.length; i++) {
+            if (channels[i].equals(name))
+                return i;
+        }
+        return -1;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getTimestamp(int record) {
+        return buffer.getLong(dataOffset + record * recordSize);
+    }
+
+    public int getCycle(int record) {
+        return buffer.getInt(dataOffset + record * recordSize + Long.BYTES);
+    }
+
+    // Reads a record's values into the given array
+    public void read(int record, double[] values) {
+        int position = dataOffset + record * recordSize + FlightRecorder.RECORD_HEADER;
+        for (int i = 0; i < channels.length; i++)
+            values[i] = buffer.getDouble(position + i * Double.BYTES);
+    }
+}
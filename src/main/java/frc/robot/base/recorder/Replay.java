@@ -0,0 +1,49 @@
+package frc.robot.base.recorder;
+
+import java.util.HashMap;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Replay {
+
+    private static boolean active = false;
+    private static HashMap<String, Integer> channels = new HashMap<>();
+    private static double[] values = new double[0];
+
+    public static boolean isActive() {
+        return active;
+    }
+
+    public static void start(Recording recording) {
+        start(recording.getChannels());
+    }
+
+    // Channels fed by something other than a recording (a simulated plant)
+    public static void start(String... names) {
+        channels = new HashMap<>();
+        for (int i = 0; i < names.length; i++)
+            channels.put(names[i], i);
+        values = new double[names.length];
+        active = true;
+    }
+
+    // Back to the hardware
+    public static void stop() {
+        active = false;
+        channels = new HashMap<>();
+        values = new double[0];
+    }
+
+    public static void load(double[] values) {
+        Replay.values = values;
+    }
+
+    // Recorded value of the current cycle, sensors read this instead of the hardware while replaying
+    public static double get(String channel) {
+        Integer index = channels.get(channel);
+        return index != null ? values[index] : 0;
+    }
+}
@@ -0,0 +1,138 @@
+package frc.robot.base.recorder;
+
+import edu.wpi.first.wpilibj.SpeedController;
+import frc.robot.base.control.path.PathManager;
+import frc.robot.base.drive.DifferentialDrive;
+import frc.robot.base.utils.Clock;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Replayer {
+
+    // Recorded outputs compared against the replayed ones
+    private static final String[] OUTPUTS = {"left-power", "right-power", "x", "y"};
+
+    private Recording recording;
+    private DifferentialDrive<SpeedController> drive;
+    private PathManager manager;
+
+    private int[] mismatches = new int[OUTPUTS.length];
+    private int[] firstMismatch = new int[OUTPUTS.length];
+    private double[] maximumDifference = new double[OUTPUTS.length];
+
+    public Replayer(Recording recording, String trajectory) {
+        this.recording = recording;
+        // Hardware-free drive stack, the sensors are fed from the recording
+        Replay.start(recording);
+        drive = new DifferentialDrive<>();
+        manager = new PathManager(drive);
+        if (trajectory != null)
+            manager.setTrajectory(trajectory);
+    }
+
+    public void run() {
+        int mode = recording.channel("mode");
+        int control = recording.channel("control");
+        int leftStick = recording.channel("left-stick");
+        int rightStick = recording.channel("right-stick");
+        int follow = recording.channel("path-follow");
+        int voltage = recording.channel("voltage");
+        int[] outputs = new int[OUTPUTS.length];
+        for (int i = 0; i < OUTPUTS.length; i++) {
+            outputs[i] = recording.channel(OUTPUTS[i]);
+            firstMismatch[i] = -1;
+        }
+
+        double[] values = new double[recording.getChannels().length];
+        double[] replayed = new double[OUTPUTS.length];
+
+        // Seed the state that existed before the recording started from its first cycle
+        if (recording.getCount() > 0) {
+            recording.read(0, values);
+            Replay.load(values);
+            drive.seedOdometry(new double[]{values[recording.channel("left-encoder")], values[recording.channel("right-encoder")]});
+            drive.getOdometry().setPosition(values[outputs[2]], values[outputs[3]]);
+            // The robot reset its controllers when the mode started, just before the first record
+            Clock.replay(recording.getTimestamp(0));
+            drive.resetControl();
+            // The first cycle's control uses the voltage the previous one ended with
+            drive.updateVoltage(values[voltage]);
+        }
+        double previousMode = recording.getCount() > 0 ? values[mode] : 0;
+
+        long start = System.nanoTime();
+        for (int record = 1; record < recording.getCount(); record++) {
+            // Feed the recorded cycle
+            recording.read(record, values);
+            Replay.load(values);
+            // Mode setup runs before the new mode's first cycle, at the previous cycle's time
+            if (values[mode] != previousMode && (values[mode] == 1 || values[mode] == 2))
+                drive.resetControl();
+            previousMode = values[mode];
+            Clock.replay(recording.getTimestamp(record));
+            // Same order as the robot loop - odometry, control, then the power task
+            drive.updateOdometry();
+            // Control runs at a lower rate than odometry (older recordings have it every cycle)
+            if (control < 0 || values[control] != 0) {
+                if (values[mode] == 2) {
+                    drive.driveTank(values[leftStick], values[rightStick]);
+                } else if (values[follow] != 0) {
+                    manager.followTrajectory(values[follow] < 0);
+                }
+            }
+            // Recorded at the end of the cycle, after the power task, so it is the voltage the next control uses
+            drive.updateVoltage(values[voltage]);
+            // Compare
+            replayed[0] = drive.left.getPower();
+            replayed[1] = drive.right.getPower();
+            replayed[2] = drive.getOdometry().getX();
+            replayed[3] = drive.getOdometry().getY();
+            for (int i = 0; i < OUTPUTS.length; i++) {
+                if (outputs[i] < 0)
+                    continue;
+                double difference = Math.abs(replayed[i] - values[outputs[i]]);
+                if (Double.doubleToLongBits(replayed[i]) != Double.doubleToLongBits(values[outputs[i]])) {
+                    mismatches[i]++;
+                    if (firstMismatch[i] < 0)
+                        firstMismatch[i] = recording.getCycle(record);
+                }
+                maximumDifference[i] = Math.max(maximumDifference[i], difference);
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // Report
+        double recorded = recording.getCount() > 0 ? (recording.getTimestamp(recording.getCount() - 1) - recording.getTimestamp(0)) / 1e6 : 0;
+        System.out.println("Replayed " + recording.getCount() + " cycles (" + recorded + "s) in " + elapsed + "s, x" + (elapsed > 0 ? recorded / elapsed : 0));
+        for (int i = 0; i < OUTPUTS.length; i++) {
+            System.out.println(OUTPUTS[i] + ": " + mismatches[i] + " mismatches, first at cycle " + firstMismatch[i] + ", maximum difference " + maximumDifference[i]);
+        }
+    }
+
+    public boolean matches() {
+        for (int count : mismatches) {
+            if (count > 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Usage: Replayer <recording.bin> [trajectory.json]
+    public static void main(String... args) throws Exception {
+        if (args.length < 1) {
+            System.out.println("Usage: Replayer <recording.bin> [trajectory.json]");
+            return;
+        }
+        String trajectory = args.length > 1 ? new String(Files.readAllBytes(new File(args[1]).toPath()), StandardCharsets.UTF_8) : null;
+        Replayer replayer = new Replayer(new Recording(new File(args[0])), trajectory);
+        replayer.run();
+        System.exit(replayer.matches() ? 0 : 1);
+    }
+}
@@ -0,0 +1,110 @@
+package frc.robot.base.rgb;
+
+import java.awt.*;
+import java.util.Arrays;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Pattern {
+
+    // Pattern types, must match leds/LED.ino
+    private static final byte FILL = 0;
+    private static final byte SLIDE = 1;
+    private static final byte SEGMENTS = 2;
+    private static final byte BLINK = 3;
+    private static final byte CHASE = 4;
+    private static final byte PROGRESS = 5;
+
+    private static final int MAXIMUM_SEGMENTS = 16;
+
+    private byte type;
+    private byte[] payload;
+
+    private Pattern(byte type, byte[] payload) {
+        this.type = type;
+        this.payload = payload;
+    }
+
+    public static Pattern fill(Color color) {
+        return new Pattern(FILL, colors(color));
+    }
+
+    public static Pattern slide(Color color) {
+        return new Pattern(SLIDE, colors(color));
+    }
+
+    // Splits the strip into equal segments, one per color
+    public static Pattern segments(Color... colors) {
+        return new Pattern(SEGMENTS, prefix(colors(Arrays.copyOf(colors, Math.min(colors.length, MAXIMUM_SEGMENTS))), Math.min(colors.length, MAXIMUM_SEGMENTS)));
+    }
+
+    public static Pattern blink(Color color, int periodMillis) {
+        return new Pattern(BLINK, suffix(colors(color), clamp(periodMillis / 10)));
+    }
+
+    public static Pattern chase(Color color, Color background, int length, int stepMillis) {
+        return new Pattern(CHASE, suffix(suffix(colors(color, background), clamp(length)), clamp(stepMillis / 10)));
+    }
+
+    // Fills the given fraction (0 to 1) of the strip
+    public static Pattern progress(Color color, Color background, double fraction) {
+        return new Pattern(PROGRESS, suffix(colors(color, background), clamp((int) Math.round(Math.max(0, Math.min(1, fraction)) * 255))));
+    }
+
+    // Frame: sync, type, length, payload, checksum (two's complement of the sum from type to payload)
+    public byte[] toFrame() {
+        byte[] frame = new byte[payload.length + 4];
+        frame[0] = (byte) 0xA5;
+        frame[1] = type;
+        frame[2] = (byte) payload.length;
+        System.arraycopy(payload, 0, frame, 3, payload.length);
+        int sum = 0;
+        for (int i = 1; i < frame.length - 1; i++)
+            sum += frame[i] & 0xFF;
+        frame[frame.length - 1] = (byte) (-sum);
+        return frame;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (!(object instanceof Pattern))
+            return false;
+        Pattern pattern = (Pattern) object;
+        return type == pattern.type && Arrays.equals(payload, pattern.payload);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * type + Arrays.hashCode(payload);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static byte[] colors(Color... colors) {
+        byte[] bytes = new byte[colors.length * 3];
+        for (int i = 0; i < colors.length; i++) {
+            bytes[i * 3] = (byte) colors[i].getRed();
+            bytes[i * 3 + 1] = (byte) colors[i].getGreen();
+            bytes[i * 3 + 2] = (byte) colors[i].getBlue();
+        }
+        return bytes;
+    }
+
+    private static byte[] prefix(byte[] bytes, int value) {
+        byte[] result = new byte[bytes.length + 1];
+        result[0] = (byte) value;
+        System.arraycopy(bytes, 0, result, 1, bytes.length);
+        return result;
+    }
+
+    private static byte[] suffix(byte[] bytes, int value) {
+        byte[] result = Arrays.copyOf(bytes, bytes.length + 1);
+        result[bytes.length] = (byte) value;
+        return result;
+    }
+}
@@ -4,8 +4,11 @@ import com.ga2230.shleam.advanced.frc.FRCModule;
 import com.ga2230.shleam.base.structure.Function;
 import com.ga2230.shleam.base.structure.Result;
 import edu.wpi.first.wpilibj.SerialPort;
+import frc.robot.base.utils.Logger;
+import frc.robot.base.utils.Signature;
 
 import java.awt.*;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Copyright (c) 2019 General Angels
@@ -14,68 +17,173 @@ import java.awt.*;
 
 public class RGB extends FRCModule {
 
-    private static final int TOO_FAST_MILLIS = 20;
+    // Must match leds/LED.ino
+    private static final int BAUD_RATE = 115200;
 
-    private long updateMillis = 0;
+    // Minimum time between frames, so the Arduino keeps up (later states are coalesced, never lost)
+    private static final long FRAME_INTERVAL_NANOS = 20 * 1000 * 1000;
+    private static final long IDLE_PARK_NANOS = 100 * 1000 * 1000;
+    // The Arduino drops bytes while it updates the strip, so the current frame is resent this often (it ignores repeats)
+    private static final long RESEND_INTERVAL_NANOS = 400 * 1000 * 1000;
 
-    private Mode sentMode = null;
     private Mode mode = Mode.Fill;
-
-    private Color sentColor = null;
     private Color color = Color.BLACK;
 
+    private volatile Pattern pattern = null;
+
+    // Incremented on every requested change
+    private volatile long version = 0;
+
+    // Writer statistics
+    private volatile long sentFrames = 0;
+    private volatile long coalescedFrames = 0;
+    private volatile long resentFrames = 0;
+    private volatile long failedFrames = 0;
+    private volatile double lastLatency = 0;
+    private volatile double maximumLatency = 0;
+
     private SerialPort serial;
+    private Thread writer;
+
+    private Logger logger = new Logger("rgb");
 
     public RGB() {
         super("rgb");
-        try {
-            this.serial = new SerialPort(9600, SerialPort.Port.kUSB);
-        } catch (Exception exception) {
-            this.serial = null;
-            log("RGB serial Initialization failure: " + exception.toString());
-        }
 
         register("color", new Function() {
+
+            private Signature signature = new Signature("color").integer("r").integer("g").integer("b");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                String[] split = parameter.split(" ");
                 // Parse things
-                int r = Integer.parseInt(split[0]);
-                int g = Integer.parseInt(split[1]);
-                int b = Integer.parseInt(split[2]);
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
                 // Set the color
-                setColor(new Color(r, g, b));
+                setColor(new Color(signature.getInteger(0), signature.getInteger(1), signature.getInteger(2)));
                 // Return OK
                 return Result.finished("Set");
             }
         });
+
+        register("pattern", new Function() {
+
+            private Signature signature = new Signature("pattern").choice("pattern", "fill", "slide", "blink", "progress").integer("r").integer("g").integer("b").optional().number("period/fraction");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                Color color = new Color(signature.getInteger(1), signature.getInteger(2), signature.getInteger(3));
+                switch (signature.getChoice(0)) {
+                    case 0:
+                        setPattern(Pattern.fill(color));
+                        break;
+                    case 1:
+                        setPattern(Pattern.slide(color));
+                        break;
+                    case 2:
+                        setPattern(Pattern.blink(color, signature.has(4) ? (int) signature.getNumber(4) : 500));
+                        break;
+                    default:
+                        setPattern(Pattern.progress(color, Color.BLACK, signature.has(4) ? signature.getNumber(4) : 0));
+                        break;
+                }
+                return Result.finished("Set");
+            }
+        });
+
+        // Start the writer (it opens the port, which can block when the Arduino is missing)
+        writer = new Thread(this::write, "rgb");
+        writer.setDaemon(true);
+        writer.start();
     }
 
     public void setMode(Mode mode) {
         this.mode = mode;
-        doUpdate();
+        restore();
     }
 
     public void setColor(Color color) {
         this.color = color;
+        restore();
+    }
+
+    // Goes back to the mode and color set by setMode / setColor
+    public void restore() {
+        setPattern(mode == Mode.Fill ? Pattern.fill(color) : Pattern.slide(color));
+    }
+
+    public void setPattern(Pattern pattern) {
+        // Only state changes are sent, the Arduino animates by itself
+        if (pattern.equals(this.pattern))
+            return;
+        this.pattern = pattern;
         doUpdate();
     }
 
     private void doUpdate() {
-        // if (sentColor != color || sentMode != mode) {
-        if (millis() > updateMillis + TOO_FAST_MILLIS) {
-            updateMillis = millis();
-            sentMode = mode;
-            sentColor = color;
-            if (this.serial != null) {
-                serial.write(new byte[]{
-                        (byte) (mode == Mode.Fill ? 0 : 1),
-                        (byte) ((sentColor.getRed() / 8) + 2),
-                        (byte) ((sentColor.getGreen() / 8) + 2),
-                        (byte) ((sentColor.getBlue() / 8) + 2),
-                        (byte) (mode == Mode.Fill ? 0 : 1),
-                }, 5);
+        // Hand the new state to the writer, never touching the serial port here
+        version++;
+        LockSupport.unpark(writer);
+    }
+
+    // Writer statistics, at the telemetry rate (frames keep going out between pattern changes)
+    public void publish() {
+        set("sent", String.valueOf(sentFrames));
+        set("coalesced", String.valueOf(coalescedFrames));
+        set("resent", String.valueOf(resentFrames));
+        set("failed", String.valueOf(failedFrames));
+        set("latency", String.valueOf(lastLatency));
+        set("maximum-latency", String.valueOf(maximumLatency));
+    }
+
+    private void write() {
+        try {
+            serial = new SerialPort(BAUD_RATE, SerialPort.Port.kUSB);
+        } catch (Exception exception) {
+            logger.log(Logger.Level.Error, "RGB serial Initialization failure: " + exception.toString());
+            return;
+        }
+        long sentVersion = 0;
+        long lastFrame = System.nanoTime();
+        while (true) {
+            long requestedVersion = version;
+            boolean changed = requestedVersion != sentVersion;
+            if (!changed && (pattern == null || System.nanoTime() - lastFrame < RESEND_INTERVAL_NANOS)) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            if (changed) {
+                // Every version after the first one since the last frame was superseded
+                coalescedFrames += requestedVersion - sentVersion - 1;
+                sentVersion = requestedVersion;
+            } else {
+                resentFrames++;
+            }
+            // Snapshot the latest state
+            byte[] frame = pattern.toFrame();
+            // Write
+            long start = System.nanoTime();
+            lastFrame = start;
+            try {
+                if (serial.write(frame, frame.length) == frame.length) {
+                    sentFrames++;
+                } else {
+                    failedFrames++;
+                }
+            } catch (Exception exception) {
+                failedFrames++;
             }
+            long latency = System.nanoTime() - start;
+            lastLatency = latency / 1e6;
+            maximumLatency = Math.max(maximumLatency, lastLatency);
+            // Pace the frames (unparking only wakes the writer early, it does not skip the interval)
+            long remaining;
+            while ((remaining = start + FRAME_INTERVAL_NANOS - System.nanoTime()) > 0)
+                LockSupport.parkNanos(remaining);
         }
     }
 
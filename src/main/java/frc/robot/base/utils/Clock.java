@@ -0,0 +1,71 @@
+package frc.robot.base.utils;
+
+import edu.wpi.first.wpilibj.RobotBase;
+import edu.wpi.first.wpilibj.RobotController;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Clock {
+
+    // On the RIO, the FPGA's microsecond counter (the time base of its own measurements), elsewhere System.nanoTime()
+    private static final boolean FPGA = hasFPGA();
+    private static final long START = now();
+
+    private static boolean replaying = false;
+    private static long replayMicros = 0;
+    private static long cycleMicros = -1;
+
+    // Monotonic time since startup (unlike millis(), never jumps with the wall clock)
+    public static double seconds() {
+        return micros() / 1e6;
+    }
+
+    public static long micros() {
+        if (replaying)
+            return replayMicros;
+        return now() - START;
+    }
+
+    // Latches the timestamp of the current cycle, so every module in the cycle sees the same time
+    public static void tick() {
+        cycleMicros = micros();
+    }
+
+    public static long cycleMicros() {
+        return cycleMicros >= 0 ? cycleMicros : micros();
+    }
+
+    public static double cycleSeconds() {
+        return cycleMicros() / 1e6;
+    }
+
+    private static long now() {
+        return FPGA ? RobotController.getFPGATime() : System.nanoTime() / 1000;
+    }
+
+    private static boolean hasFPGA() {
+        try {
+            return RobotBase.isReal();
+        } catch (Throwable throwable) {
+            // No HAL (desktop tools, replays)
+            return false;
+        }
+    }
+
+    // Replaces the time source with recorded timestamps
+    public static void replay(long micros) {
+        replaying = true;
+        replayMicros = micros;
+        tick();
+    }
+
+    // Back to the real time source
+    public static void stopReplay() {
+        replaying = false;
+        replayMicros = 0;
+        cycleMicros = -1;
+    }
+}
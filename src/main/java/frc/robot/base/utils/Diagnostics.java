@@ -0,0 +1,310 @@
+package frc.robot.base.utils;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Diagnostics extends FRCModule {
+
+    // Recent overrun cycles and GC pauses kept for matching
+    private static final int HISTORY = 32;
+
+    // GC notifications arrive after the pause, overruns wait this long for theirs (ms)
+    private static final long NOTIFICATION_DELAY = 1000;
+
+    // Pause times are whole milliseconds, widen the cycle by this much when matching (ms)
+    private static final double MATCH_MARGIN = 1;
+
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    private Logger logger = new Logger("diagnostics");
+
+    private com.sun.management.ThreadMXBean threads;
+    private boolean supported = false;
+    // Bytes a pair of allocated() calls report by themselves
+    private long overhead = 0;
+
+    // JVM start in System.nanoTime() terms, GC start times are relative to it
+    private long startNanos;
+
+    private long periodNanos;
+
+    // Cycle (the loop thread)
+    private long cycleThread = -1;
+    private long cycleBytes = 0;
+    private long cycleNanos = 0;
+    private long cycles = 0;
+    private double averageBytes = 0;
+    private long maximumBytes = 0;
+    private long totalBytes = 0;
+
+    // Per task, filled in by whoever runs the work
+    private ArrayList<Work> work = new ArrayList<>();
+
+    // Everything below is the loop thread's, the "fetch" command reads the report it last built
+    private volatile String snapshot = new JSONObject().toString();
+    private volatile boolean resetRequested = false;
+
+    // Overrun cycles waiting to be matched against pauses (ms since JVM start)
+    private double[] overrunStarts = new double[HISTORY];
+    private double[] overrunEnds = new double[HISTORY];
+    private int overrunCount = 0;
+    private long overruns = 0, gcOverruns = 0;
+
+    // Pauses, written by the notification thread
+    private final Object lock = new Object();
+    private double[] pauseStarts = new double[HISTORY];
+    private double[] pauseEnds = new double[HISTORY];
+    private int pauseIndex = 0;
+    private long pauses = 0;
+    private double pauseTotal = 0, pauseMaximum = 0;
+
+    public Diagnostics(double period) {
+        super("diagnostics");
+        this.periodNanos = (long) (period * 1e9);
+        this.startNanos = System.nanoTime() - ManagementFactory.getRuntimeMXBean().getUptime() * 1000000;
+
+        // Allocation counters (HotSpot only)
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            threads = (com.sun.management.ThreadMXBean) bean;
+            supported = threads.isThreadAllocatedMemorySupported();
+            if (supported && !threads.isThreadAllocatedMemoryEnabled())
+                threads.setThreadAllocatedMemoryEnabled(true);
+        }
+        if (supported) {
+            // Calibrate, the counter read may allocate by itself
+            long minimum = Long.MAX_VALUE;
+            for (int i = 0; i < 16; i++) {
+                long before = allocated();
+                minimum = Math.min(minimum, allocated() - before);
+            }
+            overhead = minimum;
+        } else {
+            logger.log(Logger.Level.Warning, "Thread allocation counters are not supported");
+        }
+
+        // GC pauses
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter))
+                continue;
+            ((NotificationEmitter) collector).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+                    return;
+                GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+                pause(info.getStartTime(), info.getDuration());
+            }, null, null);
+        }
+
+        register("fetch", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                return Result.finished(snapshot);
+            }
+        });
+
+        register("reset", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                // Done by the loop thread on its next publish
+                resetRequested = true;
+                return Result.finished("Reset");
+            }
+        });
+    }
+
+    // Bytes the calling thread has allocated so far
+    public long allocated() {
+        return supported ? threads.getThreadAllocatedBytes(Thread.currentThread().getId()) : 0;
+    }
+
+    // Slot for a piece of work (a scheduler task), measured with measure()
+    public int track(String name) {
+        work.add(new Work(name));
+        return work.size() - 1;
+    }
+
+    // Allocated bytes of one run, from the allocated() value before it
+    public void measure(int slot, long before) {
+        if (!supported)
+            return;
+        long bytes = Math.max(0, allocated() - before - overhead);
+        Work work = this.work.get(slot);
+        work.runs++;
+        work.total += bytes;
+        work.average += (bytes - work.average) * AVERAGE_WEIGHT;
+        work.maximum = Math.max(work.maximum, bytes);
+    }
+
+    // Wraps the loop cycle
+    public void begin() {
+        cycleThread = Thread.currentThread().getId();
+        cycleNanos = System.nanoTime();
+        cycleBytes = allocated();
+    }
+
+    // Overrun when the caller says so (the scheduler went over budget) or the cycle took longer than its period
+    public void end(boolean overrun) {
+        long now = System.nanoTime();
+        if (supported && Thread.currentThread().getId() == cycleThread) {
+            long bytes = Math.max(0, allocated() - cycleBytes - overhead);
+            cycles++;
+            totalBytes += bytes;
+            averageBytes += (bytes - averageBytes) * AVERAGE_WEIGHT;
+            maximumBytes = Math.max(maximumBytes, bytes);
+        }
+        if (overrun || now - cycleNanos > periodNanos) {
+            overruns++;
+            if (overrunCount < HISTORY) {
+                overrunStarts[overrunCount] = uptime(cycleNanos);
+                overrunEnds[overrunCount] = uptime(now);
+                overrunCount++;
+            }
+        }
+    }
+
+    // Matches waiting overruns against the pauses, those without one after the notification delay were something else
+    private void match() {
+        double now = uptime(System.nanoTime());
+        int kept = 0;
+        synchronized (lock) {
+            for (int i = 0; i < overrunCount; i++) {
+                boolean paused = false;
+                int count = (int) Math.min(pauses, HISTORY);
+                for (int pause = 0; pause < count && !paused; pause++)
+                    paused = pauseStarts[pause] <= overrunEnds[i] + MATCH_MARGIN && pauseEnds[pause] >= overrunStarts[i] - MATCH_MARGIN;
+                if (paused) {
+                    gcOverruns++;
+                } else if (now - overrunEnds[i] < NOTIFICATION_DELAY) {
+                    overrunStarts[kept] = overrunStarts[i];
+                    overrunEnds[kept] = overrunEnds[i];
+                    kept++;
+                }
+            }
+        }
+        overrunCount = kept;
+    }
+
+    private void pause(long start, long duration) {
+        synchronized (lock) {
+            pauseStarts[pauseIndex] = start;
+            pauseEnds[pauseIndex] = start + duration;
+            pauseIndex = (pauseIndex + 1) % HISTORY;
+            pauses++;
+            pauseTotal += duration;
+            pauseMaximum = Math.max(pauseMaximum, duration);
+        }
+    }
+
+    private double uptime(long nanos) {
+        return (nanos - startNanos) / 1e6;
+    }
+
+    private void reset() {
+        cycles = 0;
+        averageBytes = 0;
+        maximumBytes = 0;
+        totalBytes = 0;
+        overrunCount = 0;
+        overruns = 0;
+        gcOverruns = 0;
+        for (Work work : this.work)
+            work.reset();
+        synchronized (lock) {
+            pauses = 0;
+            pauseIndex = 0;
+            pauseTotal = 0;
+            pauseMaximum = 0;
+        }
+    }
+
+    // Telemetry, at its own rate
+    public void publish() {
+        if (resetRequested) {
+            resetRequested = false;
+            reset();
+        }
+        match();
+        set("cycle-bytes", String.valueOf(averageBytes));
+        set("cycle-maximum", String.valueOf(maximumBytes));
+        set("overruns", String.valueOf(overruns));
+        set("gc-overruns", String.valueOf(gcOverruns));
+        synchronized (lock) {
+            set("gc-pauses", String.valueOf(pauses));
+            set("gc-time", String.valueOf(pauseTotal));
+            set("gc-maximum", String.valueOf(pauseMaximum));
+        }
+        for (Work work : this.work) {
+            set(work.name + "-bytes", String.valueOf(work.average));
+            set(work.name + "-maximum", String.valueOf(work.maximum));
+        }
+        snapshot = report().toString();
+    }
+
+    // Everything measured since the last reset, tasks by bytes per run (the hot spots first)
+    private JSONObject report() {
+        JSONObject report = new JSONObject();
+        report.put("supported", supported);
+        report.put("cycles", cycles);
+        report.put("cycle-bytes", cycles > 0 ? totalBytes / cycles : 0);
+        report.put("cycle-maximum", maximumBytes);
+        report.put("overruns", overruns);
+        report.put("gc-overruns", gcOverruns);
+        synchronized (lock) {
+            report.put("gc-pauses", pauses);
+            report.put("gc-time", pauseTotal);
+            report.put("gc-maximum", pauseMaximum);
+        }
+        ArrayList<Work> sorted = new ArrayList<>(this.work);
+        sorted.sort((first, second) -> Double.compare(second.perRun(), first.perRun()));
+        JSONArray tasks = new JSONArray();
+        for (Work work : sorted) {
+            JSONObject task = new JSONObject();
+            task.put("name", work.name);
+            task.put("runs", work.runs);
+            task.put("bytes", work.perRun());
+            task.put("maximum", work.maximum);
+            task.put("total", work.total);
+            tasks.put(task);
+        }
+        report.put("tasks", tasks);
+        return report;
+    }
+
+    private static class Work {
+
+        private String name;
+        private long runs = 0, total = 0, maximum = 0;
+        private double average = 0;
+
+        private Work(String name) {
+            this.name = name;
+        }
+
+        private double perRun() {
+            return runs > 0 ? (double) total / runs : 0;
+        }
+
+        private void reset() {
+            runs = 0;
+            total = 0;
+            maximum = 0;
+            average = 0;
+        }
+    }
+}
@@ -1,23 +1,18 @@
 package frc.robot.base.utils;
 
-import com.ctre.phoenix.motorcontrol.FeedbackDevice;
 import com.ctre.phoenix.motorcontrol.can.WPI_TalonSRX;
+import frc.robot.base.can.MotorConfigurator;
 import frc.robot.kobe.systems.KobeFeeder;
 
 public class General {
 
-    public static void setupMotor(WPI_TalonSRX talon, FeedbackDevice feedbackDevice, double kP, double kI, double kD, double kF) {
-        talon.setSelectedSensorPosition(0);
-        talon.configFactoryDefault();
-        talon.configSelectedFeedbackSensor(feedbackDevice, 0, 30);
-        talon.configNominalOutputForward(0, 30);
-        talon.configNominalOutputReverse(0, 30);
-        talon.configPeakOutputForward(1, 30);
-        talon.configPeakOutputReverse(-1, 30);
+    public static void configurePIDF(WPI_TalonSRX talon, double kP, double kI, double kD, double kF) {
         talon.config_kP(0, kP, 30);
         talon.config_kI(0, kI, 30);
         talon.config_kD(0, kD, 30);
         talon.config_kF(0, kF, 30);
+        // The gains no longer match the declared configuration
+        MotorConfigurator.invalidate(talon);
     }
 
     public static double compassify(double angle) {
@@ -0,0 +1,158 @@
+package frc.robot.base.utils;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class JamDetector extends FRCModule {
+
+    private static final int SAMPLES = 64;
+
+    // Timing (seconds)
+    private static final double INRUSH_TIME = 0.25; // Ignored after starting, the motor draws a spike while accelerating
+    private static final double WINDOW_TIME = 0.1; // Stall must last this long
+    private static final double REVERSE_TIME = 0.25;
+    private static final double RETRY_TIME = 0.5; // A jam within this time after a retry counts as the same jam
+
+    // Profile learning
+    private static final double LEARNING_RATE = 0.02;
+    private static final double STALL_DEVIATIONS = 4;
+    private static final int MAXIMUM_RETRIES = 3;
+
+    private double minimumStallCurrent;
+
+    // Ring buffer of timestamped samples
+    private double[] times = new double[SAMPLES];
+    private double[] currents = new double[SAMPLES];
+    private int head = 0;
+    private int size = 0;
+
+    // Normal feed profile
+    private double mean;
+    private double variance;
+
+    private State state = State.Idle;
+    private double stateTime = 0;
+    private int retries = 0;
+    private int jams = 0;
+
+    public JamDetector(String id, double normalCurrent, double minimumStallCurrent) {
+        super(id);
+        this.mean = normalCurrent;
+        this.variance = normalCurrent * normalCurrent / 4;
+        this.minimumStallCurrent = minimumStallCurrent;
+    }
+
+    public Action update(double current, boolean running) {
+        double time = Clock.cycleSeconds();
+        // Record sample
+        times[head] = time;
+        currents[head] = current;
+        head = (head + 1) % SAMPLES;
+        size = Math.min(size + 1, SAMPLES);
+        // Stopping resets everything
+        if (!running) {
+            setState(State.Idle, time);
+            retries = 0;
+            publish();
+            return Action.Stop;
+        }
+        double elapsed = time - stateTime;
+        switch (state) {
+            case Idle:
+                setState(State.Starting, time);
+                break;
+            case Starting:
+                if (elapsed > INRUSH_TIME)
+                    setState(State.Running, time);
+                break;
+            case Running:
+                if (isStalled(time)) {
+                    jams++;
+                    if (++retries > MAXIMUM_RETRIES) {
+                        setState(State.Failed, time);
+                    } else {
+                        setState(State.Reversing, time);
+                    }
+                } else {
+                    learn(current);
+                    // Long enough without a jam, forget the retries
+                    if (elapsed > RETRY_TIME)
+                        retries = 0;
+                }
+                break;
+            case Reversing:
+                if (elapsed > REVERSE_TIME)
+                    setState(State.Starting, time);
+                break;
+            case Failed:
+                // Waits for the operator to stop
+                break;
+        }
+        publish();
+        switch (state) {
+            case Reversing:
+                return Action.Reverse;
+            case Failed:
+                return Action.Stop;
+            default:
+                return Action.Run;
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    private boolean isStalled(double time) {
+        double threshold = Math.max(minimumStallCurrent, mean + STALL_DEVIATIONS * Math.sqrt(variance));
+        // Every sample within the window must be above the threshold
+        int counted = 0;
+        for (int i = 1; i <= size; i++) {
+            int index = (head - i + SAMPLES) % SAMPLES;
+            if (time - times[index] > WINDOW_TIME)
+                break;
+            if (currents[index] < threshold)
+                return false;
+            counted++;
+        }
+        // The window must be covered by more than one sample
+        return counted > 1;
+    }
+
+    private void learn(double current) {
+        // Exponentially weighted mean and variance of the normal feed current
+        double difference = current - mean;
+        mean += LEARNING_RATE * difference;
+        variance = (1 - LEARNING_RATE) * (variance + LEARNING_RATE * difference * difference);
+    }
+
+    private void setState(State state, double time) {
+        this.state = state;
+        this.stateTime = time;
+    }
+
+    private void publish() {
+        set("state", state.name());
+        set("mean", String.valueOf(mean));
+        set("deviation", String.valueOf(Math.sqrt(variance)));
+        set("jams", String.valueOf(jams));
+    }
+
+    public enum State {
+        Idle,
+        Starting,
+        Running,
+        Reversing,
+        Failed
+    }
+
+    public enum Action {
+        Run,
+        Reverse,
+        Stop
+    }
+}
@@ -0,0 +1,202 @@
+package frc.robot.base.utils;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Logger {
+
+    // Queue capacity (power of two), messages beyond it are dropped instead of blocking
+    private static final int CAPACITY = 1024;
+    private static final long WRITER_PARK_NANOS = 10 * 1000 * 1000;
+
+    private static volatile Level level = Level.Info;
+
+    // Bounded multi-producer single-consumer ring
+    private static final AtomicReferenceArray<Entry> queue = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static volatile long head = 0;
+    private static final AtomicLong dropped = new AtomicLong();
+
+    private static Thread writer;
+
+    private String id;
+
+    public Logger(String id) {
+        this.id = id;
+        startWriter();
+    }
+
+    public static void setLevel(Level level) {
+        Logger.level = level;
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    public Site site(Level level, long intervalMillis) {
+        return new Site(this, level, intervalMillis);
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= Logger.level.ordinal();
+    }
+
+    public void log(Level level, String message) {
+        if (isEnabled(level))
+            offer(new Entry(this, level, message, null, 0));
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null)
+            return;
+        writer = new Thread(Logger::write, "logger");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    private static void offer(Entry entry) {
+        while (true) {
+            long position = tail.get();
+            if (position - head >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (tail.compareAndSet(position, position + 1)) {
+                queue.set((int) (position & (CAPACITY - 1)), entry);
+                return;
+            }
+        }
+    }
+
+    private static void write() {
+        while (true) {
+            int index = (int) (head & (CAPACITY - 1));
+            Entry entry = queue.get(index);
+            if (entry == null) {
+                LockSupport.parkNanos(WRITER_PARK_NANOS);
+                continue;
+            }
+            queue.set(index, null);
+            head = head + 1;
+            // Formatting happens here, off the control thread
+            System.out.println(entry.format());
+        }
+    }
+
+    public enum Level {
+        Debug,
+        Info,
+        Warning,
+        Error
+    }
+
+    public static class Site {
+
+        private Logger logger;
+        private Level level;
+        private long intervalMillis;
+        private long lastMillis = Long.MIN_VALUE / 2;
+        private int suppressed = 0;
+
+        private Site(Logger logger, Level level, long intervalMillis) {
+            this.logger = logger;
+            this.level = level;
+            this.intervalMillis = intervalMillis;
+        }
+
+        // Check before building the message, a disabled or throttled site costs a comparison
+        public boolean enabled() {
+            if (!logger.isEnabled(level))
+                return false;
+            // Unthrottled sites never read the clock
+            if (intervalMillis <= 0)
+                return true;
+            long now = System.currentTimeMillis();
+            if (now - lastMillis < intervalMillis) {
+                suppressed++;
+                return false;
+            }
+            return true;
+        }
+
+        public void log(String message) {
+            if (enabled())
+                emit(message, null);
+        }
+
+        // Fixed arities for per-cycle sites, the values array is only built when the entry is emitted
+        public void log(String format, double value) {
+            if (enabled())
+                emit(format, new double[]{value});
+        }
+
+        public void log(String format, double first, double second) {
+            if (enabled())
+                emit(format, new double[]{first, second});
+        }
+
+        public void log(String format, double first, double second, double third) {
+            if (enabled())
+                emit(format, new double[]{first, second, third});
+        }
+
+        // Builds the array at the call site even when disabled, keep it off per-cycle paths
+        public void log(String format, double... values) {
+            if (enabled())
+                emit(format, values);
+        }
+
+        private void emit(String format, double[] values) {
+            if (intervalMillis > 0)
+                lastMillis = System.currentTimeMillis();
+            offer(new Entry(logger, level, format, values, suppressed));
+            suppressed = 0;
+        }
+    }
+
+    private static class Entry {
+
+        private Logger logger;
+        private Level level;
+        private String format;
+        private double[] values;
+        private int suppressed;
+
+        private Entry(Logger logger, Level level, String format, double[] values, int suppressed) {
+            this.logger = logger;
+            this.level = level;
+            this.format = format;
+            this.values = values;
+            this.suppressed = suppressed;
+        }
+
+        private String format() {
+            StringBuilder builder = new StringBuilder();
+            builder.append('[').append(level.name().toUpperCase(Locale.ROOT)).append("] ").append(logger.id).append(": ");
+            if (values == null) {
+                builder.append(format);
+            } else {
+                Object[] arguments = new Object[values.length];
+                for (int i = 0; i < values.length; i++)
+                    arguments[i] = values[i];
+                builder.append(String.format(Locale.ROOT, format, arguments));
+            }
+            if (suppressed > 0)
+                builder.append(" (").append(suppressed).append(" suppressed)");
+            return builder.toString();
+        }
+    }
+}
@@ -18,6 +18,7 @@ public class MotorGroup<Type extends SpeedController> extends FRCModule {
     private Encoder encoder;
     private ArrayList<Type> drives = new ArrayList<>();
     private int direction = FORWARD;
+    private double power = 0;
 
     public MotorGroup(String id) {
         super(id);
@@ -78,7 +79,12 @@ public class MotorGroup<Type extends SpeedController> extends FRCModule {
         drives.remove(drive);
     }
 
+    public double getPower() {
+        return power;
+    }
+
     public void applyPower(double value) {
+        power = value;
         set("speed", String.valueOf(value));
         set("encoder", String.valueOf(encoder != null ? encoder.get() : 0));
         for (Type drive : drives) drive.set(value * direction);
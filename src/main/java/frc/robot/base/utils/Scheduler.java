@@ -0,0 +1,207 @@
+package frc.robot.base.utils;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Scheduler extends FRCModule {
+
+    // Tasks at or above this priority always run when due, the rest wait for the next tick if the tick is over budget
+    public static final int CRITICAL = 10;
+
+    // Share of the base period a tick may use before non critical tasks are pushed to the next tick
+    private static final double BUDGET = 0.8;
+
+    // Phases are spread over the least common multiple of the periods, up to this many ticks
+    private static final int MAXIMUM_HYPERPERIOD = 1000;
+
+    // Own statistics
+    private static final double PUBLISH_FREQUENCY = 2;
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    private Logger logger = new Logger("scheduler");
+
+    private double period;
+    private long budgetNanos;
+
+    // Sorted by priority, highest first
+    private ArrayList<Task> tasks = new ArrayList<>();
+    private int[] load = new int[1];
+
+    // Allocation measurements per task (optional)
+    private Diagnostics diagnostics;
+
+    private long tick = 0;
+    private long overruns = 0;
+    private boolean overrun = false;
+    private double averageNanos = 0;
+    private long maximumNanos = 0;
+
+    public Scheduler(double period) {
+        super("scheduler");
+        this.period = period;
+        this.budgetNanos = (long) (period * BUDGET * 1e9);
+        // Publish statistics as a task of its own
+        task("scheduler", PUBLISH_FREQUENCY, 0, this::publish);
+    }
+
+    // Runs the runnable at (about) the given frequency, the period is rounded to whole ticks
+    public void task(String name, double frequency, int priority, Runnable runnable) {
+        int ticks = (int) Math.max(1, Math.round(1 / (frequency * period)));
+        Task task = new Task(name, ticks, priority, runnable);
+        if (diagnostics != null)
+            task.slot = diagnostics.track(name);
+        spread(task);
+        // Keep the order stable for equal priorities
+        int index = 0;
+        while (index < tasks.size() && tasks.get(index).priority >= priority)
+            index++;
+        tasks.add(index, task);
+        set(name + "-frequency", String.valueOf(1 / (ticks * period)));
+    }
+
+    // Measures the bytes each task allocates from now on
+    public void setDiagnostics(Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+        for (Task task : tasks)
+            task.slot = diagnostics.track(task.name);
+    }
+
+    // Whether the last tick went over budget
+    public boolean wasOverrun() {
+        return overrun;
+    }
+
+    // Called once per base period, runs the tasks that are due
+    public void run() {
+        long start = System.nanoTime();
+        boolean over = false;
+        for (int i = 0; i < tasks.size(); i++) {
+            Task task = tasks.get(i);
+            if (tick < task.next)
+                continue;
+            if (over && task.priority < CRITICAL) {
+                // Still due, so it runs next tick
+                task.deferred++;
+                continue;
+            }
+            task.run(tick);
+            if (!over && System.nanoTime() - start > budgetNanos) {
+                over = true;
+                overruns++;
+            }
+        }
+        overrun = over;
+        long elapsed = System.nanoTime() - start;
+        averageNanos += (elapsed - averageNanos) * AVERAGE_WEIGHT;
+        maximumNanos = Math.max(maximumNanos, elapsed);
+        tick++;
+    }
+
+    private void spread(Task task) {
+        // Grow the slot table to the new hyperperiod
+        int hyperperiod = load.length / gcd(load.length, task.ticks) * task.ticks;
+        if (hyperperiod > MAXIMUM_HYPERPERIOD)
+            hyperperiod = load.length;
+        if (hyperperiod != load.length) {
+            int[] grown = new int[hyperperiod];
+            for (int slot = 0; slot < hyperperiod; slot++)
+                grown[slot] = load[slot % load.length];
+            load = grown;
+        }
+        // Pick the phase whose busiest tick is the least busy
+        int best = 0;
+        int bestLoad = Integer.MAX_VALUE;
+        for (int phase = 0; phase < task.ticks; phase++) {
+            int busiest = 0;
+            for (int slot = phase; slot < load.length; slot += task.ticks)
+                busiest = Math.max(busiest, load[slot]);
+            if (busiest < bestLoad) {
+                bestLoad = busiest;
+                best = phase;
+            }
+        }
+        for (int slot = best; slot < load.length; slot += task.ticks)
+            load[slot]++;
+        task.next = best;
+        set(task.name + "-phase", String.valueOf(best));
+    }
+
+    private void publish() {
+        set("tick-average", String.valueOf(averageNanos / 1e6));
+        set("tick-maximum", String.valueOf(maximumNanos / 1e6));
+        set("overruns", String.valueOf(overruns));
+        for (Task task : tasks) {
+            set(task.name + "-average", String.valueOf(task.averageNanos / 1e6));
+            set(task.name + "-maximum", String.valueOf(task.maximumNanos / 1e6));
+            set(task.name + "-runs", String.valueOf(task.runs));
+            set(task.name + "-deferred", String.valueOf(task.deferred));
+            set(task.name + "-missed", String.valueOf(task.missed));
+            set(task.name + "-errors", String.valueOf(task.errors));
+            task.maximumNanos = 0;
+        }
+        maximumNanos = 0;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int remainder = a % b;
+            a = b;
+            b = remainder;
+        }
+        return a;
+    }
+
+    private class Task {
+
+        private String name;
+        private int ticks;
+        private int priority;
+        private Runnable runnable;
+
+        private long next;
+        private int slot = -1;
+
+        // Statistics
+        private long runs = 0, deferred = 0, missed = 0, errors = 0;
+        private double averageNanos = 0;
+        private long maximumNanos = 0;
+
+        private Task(String name, int ticks, int priority, Runnable runnable) {
+            this.name = name;
+            this.ticks = ticks;
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+
+        private void run(long tick) {
+            long start = System.nanoTime();
+            long bytes = slot >= 0 ? diagnostics.allocated() : 0;
+            try {
+                runnable.run();
+            } catch (Exception exception) {
+                // One failing task must not stop the others, log the 1st, 2nd, 4th... failure
+                errors++;
+                if ((errors & (errors - 1)) == 0)
+                    logger.log(Logger.Level.Error, "Task " + name + " failed (" + errors + "): " + exception.toString());
+            }
+            long elapsed = System.nanoTime() - start;
+            if (slot >= 0)
+                diagnostics.measure(slot, bytes);
+            averageNanos += (elapsed - averageNanos) * AVERAGE_WEIGHT;
+            maximumNanos = Math.max(maximumNanos, elapsed);
+            runs++;
+            // Keep the phase, skipping runs that were deferred past their next slot
+            next += ticks;
+            while (next <= tick) {
+                next += ticks;
+                missed++;
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+package frc.robot.base.utils;
+
+import com.ga2230.shleam.base.structure.Result;
+
+import java.util.ArrayList;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Signature {
+
+    // Binary form: '!' and then 16 hex digits per argument - the IEEE-754 bits of its value (the option's index for choices)
+    private static final char BINARY = '!';
+    private static final int BINARY_DIGITS = 16;
+
+    // Integers up to 10^15 and powers of ten up to 10^22 are exact doubles, so one multiplication or division rounds correctly
+    private static final int EXACT_DIGITS = 15;
+    private static final double[] POWERS = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private String command;
+    private String usage;
+    private ArrayList<Argument> arguments = new ArrayList<>();
+    private int required = 0;
+    private boolean optional = false;
+
+    // Last parsed parameter (words point into it)
+    private String parameter;
+
+    public Signature(String command) {
+        this.command = command;
+        this.usage = command;
+    }
+
+    public Signature number(String name) {
+        return add(new Argument(name, Type.Number, null));
+    }
+
+    public Signature integer(String name) {
+        return add(new Argument(name, Type.Integer, null));
+    }
+
+    public Signature choice(String name, String... options) {
+        return add(new Argument(name, Type.Choice, options));
+    }
+
+    public Signature word(String name) {
+        return add(new Argument(name, Type.Word, null));
+    }
+
+    // Every argument declared after this one may be left out
+    public Signature optional() {
+        optional = true;
+        return this;
+    }
+
+    // Returns null when the parameter matches, an error result otherwise
+    public Result parse(String parameter) {
+        this.parameter = parameter;
+        for (Argument argument : arguments)
+            argument.present = false;
+        int length = parameter == null ? 0 : parameter.length();
+        int position = skip(parameter, 0, length);
+        if (position < length && parameter.charAt(position) == BINARY)
+            return parseBinary(parameter, position + 1, length);
+        int index = 0;
+        while (position < length) {
+            if (index == arguments.size())
+                return usage();
+            int end = position;
+            while (end < length && !isSeparator(parameter.charAt(end)))
+                end++;
+            Argument argument = arguments.get(index);
+            if (!argument.parse(parameter, position, end))
+                return invalid(argument, parameter.substring(position, end));
+            argument.present = true;
+            index++;
+            position = skip(parameter, end, length);
+        }
+        if (index < required)
+            return usage();
+        return null;
+    }
+
+    // Same, for parsers that report errors by throwing (routine actions)
+    public Signature require(String parameter) {
+        if (parse(parameter) != null)
+            throw new IllegalArgumentException("Usage: " + usage);
+        return this;
+    }
+
+    public boolean has(int index) {
+        return arguments.get(index).present;
+    }
+
+    public double getNumber(int index) {
+        return arguments.get(index).number;
+    }
+
+    public int getInteger(int index) {
+        return (int) arguments.get(index).integer;
+    }
+
+    // Index of the option given, -1 if left out
+    public int getChoice(int index) {
+        Argument argument = arguments.get(index);
+        return argument.present ? (int) argument.integer : -1;
+    }
+
+    public boolean matches(int index, String word) {
+        Argument argument = arguments.get(index);
+        return argument.present && argument.end - argument.start == word.length() && parameter.regionMatches(argument.start, word, 0, word.length());
+    }
+
+    // Allocates, meant for low rate commands
+    public String getWord(int index) {
+        Argument argument = arguments.get(index);
+        return argument.present ? parameter.substring(argument.start, argument.end) : null;
+    }
+
+    public String getUsage() {
+        return usage;
+    }
+
+    // Binary form of the given values, for senders that want to skip the text parsing
+    public static String encode(double... values) {
+        StringBuilder builder = new StringBuilder().append(BINARY);
+        for (double value : values) {
+            String hex = Long.toHexString(Double.doubleToRawLongBits(value));
+            for (int i = hex.length(); i < BINARY_DIGITS; i++)
+                builder.append('0');
+            builder.append(hex);
+        }
+        return builder.toString();
+    }
+
+    private Signature add(Argument argument) {
+        arguments.add(argument);
+        if (!optional)
+            required = arguments.size();
+        usage += optional ? " [" + argument.describe() + "]" : " <" + argument.describe() + ">";
+        return this;
+    }
+
+    private Result parseBinary(String parameter, int position, int length) {
+        int index = 0;
+        while (position < length) {
+            if (index == arguments.size() || position + BINARY_DIGITS > length)
+                return usage();
+            Argument argument = arguments.get(index);
+            long bits = 0;
+            for (int i = 0; i < BINARY_DIGITS; i++) {
+                int digit = Character.digit(parameter.charAt(position + i), 16);
+                if (digit < 0)
+                    return invalid(argument, parameter.substring(position, position + BINARY_DIGITS));
+                bits = (bits << 4) | digit;
+            }
+            if (!argument.decode(bits))
+                return invalid(argument, parameter.substring(position, position + BINARY_DIGITS));
+            argument.present = true;
+            index++;
+            position = skip(parameter, position + BINARY_DIGITS, length);
+        }
+        if (index < required)
+            return usage();
+        return null;
+    }
+
+    private Result usage() {
+        return Result.notFinished("Usage: " + usage);
+    }
+
+    private Result invalid(Argument argument, String token) {
+        return Result.notFinished("Invalid " + argument.name + " '" + token + "', usage: " + usage);
+    }
+
+    private static boolean isSeparator(char character) {
+        return character == ' ' || character == ',' || character == '\t';
+    }
+
+    private static int skip(String parameter, int position, int length) {
+        while (position < length && isSeparator(parameter.charAt(position)))
+            position++;
+        return position;
+    }
+
+    private static int digit(char character) {
+        return character >= '0' && character <= '9' ? character - '0' : -1;
+    }
+
+    private enum Type {
+        Number,
+        Integer,
+        Choice,
+        Word
+    }
+
+    private static class Argument {
+
+        private String name;
+        private Type type;
+        private String[] options;
+
+        // Holders for the last parse
+        private boolean present;
+        private double number;
+        private long integer;
+        private int start, end;
+
+        private Argument(String name, Type type, String[] options) {
+            this.name = name;
+            this.type = type;
+            this.options = options;
+        }
+
+        private String describe() {
+            return type == Type.Choice ? String.join("|", options) : name;
+        }
+
+        private boolean parse(String parameter, int start, int end) {
+            this.start = start;
+            this.end = end;
+            switch (type) {
+                case Number:
+                    return parseNumber(parameter, start, end);
+                case Integer:
+                    return parseInteger(parameter, start, end);
+                case Choice:
+                    for (int i = 0; i < options.length; i++) {
+                        if (options[i].length() == end - start && parameter.regionMatches(start, options[i], 0, options[i].length())) {
+                            integer = i;
+                            return true;
+                        }
+                    }
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        private boolean decode(long bits) {
+            double value = Double.longBitsToDouble(bits);
+            switch (type) {
+                case Number:
+                    number = value;
+                    return true;
+                case Integer:
+                    // Whole values in the int range only (NaN fails both)
+                    if (value != Math.rint(value) || value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+                        return false;
+                    integer = (long) value;
+                    number = integer;
+                    return true;
+                case Choice:
+                    if (value != Math.rint(value) || value < 0 || value >= options.length)
+                        return false;
+                    integer = (long) value;
+                    return true;
+                default:
+                    // Words have no binary form
+                    return false;
+            }
+        }
+
+        private boolean parseInteger(String parameter, int position, int end) {
+            boolean negative = false;
+            if (position < end && (parameter.charAt(position) == '-' || parameter.charAt(position) == '+'))
+                negative = parameter.charAt(position++) == '-';
+            if (position == end || end - position > 18)
+                return false;
+            long value = 0;
+            for (; position < end; position++) {
+                int digit = digit(parameter.charAt(position));
+                if (digit < 0)
+                    return false;
+                value = value * 10 + digit;
+            }
+            integer = negative ? -value : value;
+            number = integer;
+            // getInteger() returns an int
+            return integer >= Integer.MIN_VALUE && integer <= Integer.MAX_VALUE;
+        }
+
+        private boolean parseNumber(String parameter, int start, int end) {
+            int position = start;
+            boolean negative = false;
+            if (position < end && (parameter.charAt(position) == '-' || parameter.charAt(position) == '+'))
+                negative = parameter.charAt(position++) == '-';
+            long mantissa = 0;
+            int significant = 0;
+            int exponent = 0;
+            boolean digits = false;
+            boolean exact = true;
+            // Integer part
+            for (int digit; position < end && (digit = digit(parameter.charAt(position))) >= 0; position++) {
+                digits = true;
+                if (mantissa == 0 && digit == 0)
+                    continue;
+                if (significant < 18) {
+                    mantissa = mantissa * 10 + digit;
+                    significant++;
+                } else {
+                    exponent++;
+                    exact &= digit == 0;
+                }
+            }
+            // Fraction
+            if (position < end && parameter.charAt(position) == '.') {
+                position++;
+                for (int digit; position < end && (digit = digit(parameter.charAt(position))) >= 0; position++) {
+                    digits = true;
+                    if (significant < 18) {
+                        if (mantissa != 0 || digit != 0)
+                            significant++;
+                        mantissa = mantissa * 10 + digit;
+                        exponent--;
+                    } else {
+                        exact &= digit == 0;
+                    }
+                }
+            }
+            if (!digits)
+                return false;
+            // Exponent
+            if (position < end && (parameter.charAt(position) == 'e' || parameter.charAt(position) == 'E')) {
+                position++;
+                boolean negativeExponent = false;
+                if (position < end && (parameter.charAt(position) == '-' || parameter.charAt(position) == '+'))
+                    negativeExponent = parameter.charAt(position++) == '-';
+                if (position == end)
+                    return false;
+                int value = 0;
+                for (int digit; position < end && (digit = digit(parameter.charAt(position))) >= 0; position++)
+                    value = Math.min(value * 10 + digit, 10000);
+                exponent += negativeExponent ? -value : value;
+            }
+            if (position != end)
+                return false;
+            if (exact && significant <= EXACT_DIGITS && Math.abs(exponent) < POWERS.length) {
+                double value = exponent < 0 ? mantissa / POWERS[-exponent] : mantissa * POWERS[exponent];
+                number = negative ? -value : value;
+            } else {
+                // Rare - long or extreme values go through the JDK (well formed, so this can not throw)
+                number = Double.parseDouble(parameter.substring(start, end));
+            }
+            return true;
+        }
+    }
+}
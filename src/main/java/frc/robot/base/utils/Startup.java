@@ -0,0 +1,204 @@
+package frc.robot.base.utils;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+public class Startup extends FRCModule {
+
+    private static final int THREADS = 4;
+
+    private ExecutorService executor;
+    private LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+
+    private long start;
+
+    public Startup() {
+        super("startup");
+        start = System.nanoTime();
+        executor = Executors.newFixedThreadPool(THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "startup");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Starts as soon as its dependencies are done, await() waits for it
+    public void stage(String name, Task task, String... dependencies) {
+        add(name, task, false, dependencies);
+    }
+
+    // Same, but not needed for the first cycle - await() does not wait for it
+    public void defer(String name, Task task, String... dependencies) {
+        add(name, task, true, dependencies);
+    }
+
+    // Waits for every non deferred stage, reporting if that took longer than the budget
+    public void await(long budgetMillis) {
+        ArrayList<CompletableFuture<Void>> required = new ArrayList<>();
+        for (Stage stage : stages.values())
+            if (!stage.deferred)
+                required.add(stage.future);
+        CompletableFuture<Void> all = CompletableFuture.allOf(required.toArray(new CompletableFuture[0]));
+        boolean overBudget = false;
+        try {
+            try {
+                all.get(budgetMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException exception) {
+                overBudget = true;
+                log("Startup over budget (" + budgetMillis + "ms), waiting for " + running());
+                all.get();
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Startup interrupted");
+        } catch (ExecutionException exception) {
+            publish();
+            throw new RuntimeException("Startup failed: " + failed(), exception.getCause());
+        } finally {
+            set("millis", String.valueOf(elapsed(System.nanoTime())));
+            set("over-budget", String.valueOf(overBudget));
+        }
+        log(publish());
+    }
+
+    // Waits up to the budget for one stage (usually a deferred one), returns whether it is done
+    public boolean await(String name, long budgetMillis) {
+        Stage stage = stages.get(name);
+        if (stage == null)
+            throw new IllegalArgumentException("Unknown startup stage " + name);
+        try {
+            stage.future.get(budgetMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ignored) {
+        }
+        if (!isDone(name))
+            log("Startup stage " + name + " is " + stage.state());
+        return isDone(name);
+    }
+
+    // Called once per cycle, reports deferred stages as they finish
+    public void update() {
+        for (Stage stage : stages.values())
+            if (stage.deferred && !stage.published && stage.future.isDone())
+                publish(stage);
+    }
+
+    public boolean isDone(String name) {
+        Stage stage = stages.get(name);
+        return stage != null && stage.future.isDone() && !stage.future.isCompletedExceptionally();
+    }
+
+    private void add(String name, Task task, boolean deferred, String... dependencies) {
+        // Dependencies must be declared first, so the graph can not have cycles
+        CompletableFuture[] futures = new CompletableFuture[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            Stage dependency = stages.get(dependencies[i]);
+            if (dependency == null)
+                throw new IllegalArgumentException("Unknown startup stage " + dependencies[i]);
+            futures[i] = dependency.future;
+        }
+        Stage stage = new Stage(name, deferred);
+        stage.future = CompletableFuture.allOf(futures).thenRunAsync(() -> stage.run(task), executor);
+        stages.put(name, stage);
+    }
+
+    private String publish() {
+        // Report line: every stage's duration, in declaration order
+        StringBuilder report = new StringBuilder("Startup " + elapsed(System.nanoTime()) + "ms:");
+        for (Stage stage : stages.values()) {
+            if (!stage.deferred || stage.future.isDone())
+                publish(stage);
+            report.append(' ').append(stage.name).append(' ').append(stage.describe());
+        }
+        return report.toString();
+    }
+
+    private void publish(Stage stage) {
+        set(stage.name + "-state", stage.state());
+        set(stage.name + "-start", String.valueOf(elapsed(stage.startNanos)));
+        set(stage.name + "-millis", String.valueOf((stage.endNanos - stage.startNanos) / 1000000));
+        stage.published = true;
+    }
+
+    private String running() {
+        StringBuilder running = new StringBuilder();
+        for (Stage stage : stages.values())
+            if (!stage.future.isDone())
+                running.append(stage.name).append(' ');
+        return running.toString().trim();
+    }
+
+    private String failed() {
+        StringBuilder failed = new StringBuilder();
+        for (Stage stage : stages.values())
+            if (stage.future.isCompletedExceptionally())
+                failed.append(stage.name).append(' ');
+        return failed.toString().trim();
+    }
+
+    private long elapsed(long nanos) {
+        return nanos == 0 ? 0 : (nanos - start) / 1000000;
+    }
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    private static class Stage {
+
+        private String name;
+        private boolean deferred;
+        private boolean published = false;
+        private CompletableFuture<Void> future;
+
+        // Written by the running thread
+        private volatile long startNanos = 0;
+        private volatile long endNanos = 0;
+
+        private Stage(String name, boolean deferred) {
+            this.name = name;
+            this.deferred = deferred;
+        }
+
+        private void run(Task task) {
+            startNanos = System.nanoTime();
+            try {
+                task.run();
+            } catch (RuntimeException exception) {
+                throw exception;
+            } catch (Exception exception) {
+                throw new RuntimeException(exception);
+            } finally {
+                endNanos = System.nanoTime();
+            }
+        }
+
+        private String state() {
+            if (!future.isDone())
+                return "running";
+            if (future.isCompletedExceptionally())
+                return startNanos == 0 ? "skipped" : "failed";
+            return "done";
+        }
+
+        private String describe() {
+            if (startNanos == 0 || endNanos == 0)
+                return state();
+            return (endNanos - startNanos) / 1000000 + "ms";
+        }
+    }
+}
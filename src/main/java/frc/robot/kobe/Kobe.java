@@ -1,18 +1,39 @@
 package frc.robot.kobe;
 
 import com.ga2230.shleam.advanced.frc.FRCRobot;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import edu.wpi.first.wpilibj.Filesystem;
 import edu.wpi.first.wpilibj.GenericHID;
 import edu.wpi.first.wpilibj.Joystick;
-import edu.wpi.first.wpilibj.PowerDistributionPanel;
 import edu.wpi.first.wpilibj.XboxController;
+import frc.robot.base.auto.Routines;
+import frc.robot.base.can.CANManager;
+import frc.robot.base.can.MotorConfigurator;
+import frc.robot.base.control.FiringSolver;
 import frc.robot.base.control.path.PathManager;
 import frc.robot.base.control.path.Point;
+import frc.robot.base.power.PowerManager;
+import frc.robot.base.recorder.FlightRecorder;
+import frc.robot.base.drive.Gyroscope;
+import frc.robot.base.rgb.Pattern;
 import frc.robot.base.rgb.RGB;
+import frc.robot.base.utils.Clock;
+import frc.robot.base.utils.Diagnostics;
 import frc.robot.base.utils.General;
+import frc.robot.base.utils.Logger;
+import frc.robot.base.utils.Scheduler;
+import frc.robot.base.utils.Signature;
+import frc.robot.base.utils.Startup;
 import frc.robot.kobe.systems.KobeDrive;
 import frc.robot.kobe.systems.KobeFeeder;
+import frc.robot.kobe.systems.KobeIndexer;
 import frc.robot.kobe.systems.KobeShooter;
 
+import java.awt.*;
+import java.io.File;
+import java.util.List;
+
 public class Kobe extends FRCRobot {
 
     /**
@@ -45,10 +66,50 @@ public class Kobe extends FRCRobot {
      * Shooter - has encoder
      */
 
+    // Base loop period, every scheduled task runs at a multiple of it
+    public static final double PERIOD = 0.005;
+
     private static final double DEADBAND = 0.05;
 
+    // Time robotInit may spend on the stages needed for the first cycle
+    private static final long STARTUP_BUDGET_MILLIS = 1500;
+    // Time autonomous may wait for the routine files still loading
+    private static final long ROUTINES_BUDGET_MILLIS = 250;
+
+    // Indexer beam-breaks (-1 = not installed)
+    private static final int INTAKE_BEAM_CHANNEL = -1;
+    private static final int STAGE_BEAM_CHANNEL = -1;
+
+    // PDP channels (power budgeting) - empty until checked against the robot's wiring, budgeting stays off until then
+    private static final int[] DRIVE_CHANNELS = {};
+    private static final int[] SHOOTER_CHANNELS = {};
+    private static final int[] FEEDER_CHANNELS = {};
+    private static final boolean POWER_BUDGETING = DRIVE_CHANNELS.length > 0 && SHOOTER_CHANNELS.length > 0 && FEEDER_CHANNELS.length > 0;
+
+    // Flywheel spin-up shown on the LEDs in this many steps
+    private static final int LED_PROGRESS_STEPS = 16;
+
+    // Shooting on the move - target position relative to where odometry was reset, and its height above the shooter
+    private static final double TARGET_X = 5;
+    private static final double TARGET_Y = 0;
+    private static final double TARGET_HEIGHT = 1.9;
+    private static final double SHOOTER_EFFICIENCY = 0.5; // Ball exit velocity over flywheel surface velocity
+    private static final double SHOOTER_MAXIMUM_VELOCITY = 34;
+
+    // Expected currents (amps)
+    private static final double DRIVE_CURRENT = 160; // Both sides at full output, 2 NEOs each
+    private static final double SHOOTER_SPINUP_CURRENT = 120; // 3 motors accelerating
+    private static final double ROLLER_CURRENT = 20;
+
+    // Battery voltage a flywheel spin-up must leave on top of the present load (the RIO browns out at 6.8V)
+    private static final double BROWNOUT_FLOOR = 7.5;
+
     private static long offset;
 
+    private Startup startup;
+    private Scheduler scheduler;
+    private Diagnostics diagnostics;
+
     // Joystick
     private Joystick driverLeft;
     private Joystick driverRight;
@@ -58,84 +119,497 @@ public class Kobe extends FRCRobot {
     private KobeDrive drive;
     private KobeFeeder feeder;
     private KobeShooter shooter;
+    private KobeIndexer indexer;
     private RGB rgb;
 
     private PathManager manager;
 
-    // PDP
-    private static PowerDistributionPanel pdp = new PowerDistributionPanel(0);
+    // Firing solution
+    private FiringSolver solver = new FiringSolver(KobeShooter.HOOD_SAFE_MINIMUM_ANGLE, KobeShooter.HOOD_SAFE_MAXIMUM_ANGLE, SHOOTER_MAXIMUM_VELOCITY, SHOOTER_EFFICIENCY);
+    private double[] chassisVelocity = new double[2];
+
+    // Autonomous routines
+    private Routines routines;
+    private boolean flywheelReady = false;
+
+    // Flywheel state for the LEDs
+    private double flywheelTarget = 0;
+    private boolean flywheelAccelerated = false;
+
+    // Recorder
+    private FlightRecorder recorder;
+    private int[] channels;
+    private double cycleStart = 0;
+    private double cyclePeriod = 0;
+    private int mode = 0;
+    private boolean controlled = false;
+    private double leftStick = 0;
+    private double rightStick = 0;
+
+    // CAN
+    private CANManager can;
+    private MotorConfigurator motors;
+
+    // Power
+    private PowerManager power;
+    private PowerManager.Budget driveBudget;
+    private PowerManager.Budget shooterBudget;
+    private PowerManager.Budget feederBudget;
 
     public Kobe() {
 
+        // Startup
+        startup = new Startup();
+
         // Controller initialization
         operator = new XboxController(0);
         driverLeft = new Joystick(1);
         driverRight = new Joystick(2);
 
-        // Module initialization
-        rgb = new RGB();
-        drive = new KobeDrive();
-        manager = new PathManager(drive);
-        feeder = new KobeFeeder();
-        shooter = new KobeShooter();
+        // Default target
+        solver.setTarget(TARGET_X, TARGET_Y, TARGET_HEIGHT);
+
+        // Module initialization (independent stages run in parallel)
+        startup.stage("rgb", () -> {
+            rgb = new RGB();
+            rgb.setMode(RGB.Mode.Fill);
+        });
+        startup.stage("drive", () -> drive = new KobeDrive());
+        startup.stage("feeder", () -> feeder = new KobeFeeder());
+        startup.stage("shooter", () -> shooter = new KobeShooter());
+        startup.stage("power", () -> {
+            power = new PowerManager(0);
+            // Power budgets, by priority
+            driveBudget = power.budget("drive", 3, DRIVE_CHANNELS);
+            shooterBudget = power.budget("shooter", 2, SHOOTER_CHANNELS);
+            feederBudget = power.budget("feeder", 1, FEEDER_CHANNELS);
+        });
+        startup.stage("recorder", () -> {
+            recorder = new FlightRecorder();
+            // Recorder schema
+            channels = new int[]{
+                    recorder.channel("mode"),
+                    recorder.channel("control"),
+                    recorder.channel("left-stick"),
+                    recorder.channel("right-stick"),
+                    recorder.channel("path-follow"),
+                    recorder.channel("period"),
+                    recorder.channel("compute"),
+                    recorder.channel("voltage"),
+                    recorder.channel("left-encoder"),
+                    recorder.channel("right-encoder"),
+                    recorder.channel("left-rate"),
+                    recorder.channel("right-rate"),
+                    recorder.channel("encoder-time"),
+                    recorder.channel("gyro-time"),
+                    recorder.channel("left-power"),
+                    recorder.channel("right-power"),
+                    recorder.channel("angle"),
+                    recorder.channel("omega"),
+                    recorder.channel("x"),
+                    recorder.channel("y"),
+                    recorder.channel("shooter-setpoint"),
+                    recorder.channel("hood-setpoint"),
+                    recorder.channel("turret-setpoint"),
+                    recorder.channel("shooter-position"),
+                    recorder.channel("shooter-velocity"),
+                    recorder.channel("turret-position"),
+                    recorder.channel("hood-position")
+            };
+        });
+        startup.stage("path", () -> manager = new PathManager(drive), "drive");
+        startup.stage("indexer", () -> indexer = new KobeIndexer(feeder, shooter, INTAKE_BEAM_CHANNEL, STAGE_BEAM_CHANNEL), "feeder", "shooter");
+        startup.stage("motors", () -> {
+            motors = new MotorConfigurator();
+            // Motor configurations (only what changed since the last boot is written)
+            shooter.declareConfigs(motors);
+            feeder.declareConfigs(motors);
+            motors.apply();
+        }, "feeder", "shooter");
+        startup.stage("can", () -> {
+            can = new CANManager();
+            // CAN status frames
+            shooter.declareSignals(can);
+            feeder.declareSignals(can);
+            can.pigeon("pigeon", Gyroscope.pigeon())
+                    .signal(CANManager.Signal.Orientation, 20)
+                    .signal(CANManager.Signal.AngularVelocity, 20);
+            can.apply();
+        }, "feeder", "shooter", "drive", "motors");
+
+        startup.stage("routines", () -> {
+            routines = new Routines();
+            declareActions();
+        }, "path", "indexer");
+
+        // Not needed for the first cycle (odometry was just reset, so the path starts at the origin), dropped if a path was set meanwhile
+        startup.defer("trajectory", () -> manager.warmUp(new Point(0, 0, 0, 0), new Point(1, 0, 0, 0)), "path");
+        startup.defer("routine-files", () -> routines.load(new File(Filesystem.getDeployDirectory(), "routines")), "routines");
+
+        startup.await(STARTUP_BUDGET_MILLIS);
 
         // Adopt children
+        adopt(startup);
         adopt(manager);
         adopt(shooter);
         adopt(feeder);
+        adopt(indexer);
         adopt(drive);
         adopt(rgb);
+        adopt(recorder);
+        adopt(power);
+        adopt(can);
+        adopt(motors);
+        adopt(routines);
+
+        // Loop tasks
+        scheduler = new Scheduler(PERIOD);
+        diagnostics = new Diagnostics(PERIOD);
+        scheduler.setDiagnostics(diagnostics);
+        declareTasks();
+        adopt(scheduler);
+        adopt(diagnostics);
 
         // Register functions
+        register("target", new Function() {
 
-        manager.createTrajectory(new Point(1, 0, 0, 0), false);
+            private Signature signature = new Signature("target").number("x").number("y").number("height");
 
-        // RGB mode
-        rgb.setMode(RGB.Mode.Fill);
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                solver.setTarget(signature.getNumber(0), signature.getNumber(1), signature.getNumber(2));
+                return Result.finished("Set");
+            }
+        });
+
+        register("log-level", new Function() {
+            @Override
+            public Result execute(String parameter) throws Exception {
+                for (Logger.Level level : Logger.Level.values()) {
+                    if (level.name().equalsIgnoreCase(parameter)) {
+                        Logger.setLevel(level);
+                        return Result.finished("Set");
+                    }
+                }
+                return Result.notFinished("Unknown level");
+            }
+        });
     }
 
-    private void updateAll() {
-        // Voltage
-        drive.updateVoltage(pdp.getVoltage());
+    private void declareActions() {
+        // Path
+        routines.action("path.create", parameter -> {
+            List<Point> waypoints = waypoints("path.create", parameter);
+            return () -> {
+                manager.createPath(waypoints);
+                return true;
+            };
+        });
+        // Extends the path being followed, so the robot does not stop between legs
+        routines.action("path.chain", parameter -> {
+            List<Point> waypoints = waypoints("path.chain", parameter);
+            return () -> {
+                manager.chainPath(waypoints);
+                return true;
+            };
+        });
+        routines.action("path.follow", parameter -> {
+            boolean reversed = parse(new Signature("path.follow").optional().choice("direction", "forward", "reverse"), parameter).getChoice(0) == 1;
+            return new Routines.Step() {
+                @Override
+                public boolean update() {
+                    return manager.followTrajectory(reversed);
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    drive.direct(0, 0);
+                }
+            };
+        });
 
-        // Time
-        set("time", String.valueOf(millis() - offset));
+        // Drive
+        routines.action("drive.reset", parameter -> () -> {
+            drive.resetOdometry();
+            return true;
+        });
+        routines.action("drive.turn", parameter -> {
+            double angle = parse(new Signature("drive.turn").number("angle"), parameter).getNumber(0);
+            return new Routines.Step() {
+                private double startingAngle = Double.NaN;
+
+                @Override
+                public boolean update() {
+                    if (Double.isNaN(startingAngle))
+                        startingAngle = drive.odometry.getAngle();
+                    return drive.driveTurn(angle, startingAngle);
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    drive.direct(0, 0);
+                }
+            };
+        });
+        routines.action("drive.direct", parameter -> {
+            Signature signature = parse(new Signature("drive.direct").number("left").number("right"), parameter);
+            double left = signature.getNumber(0);
+            double right = signature.getNumber(1);
+            // Runs until interrupted (race it with a wait)
+            return new Routines.Step() {
+                @Override
+                public boolean update() {
+                    drive.direct(left, right);
+                    return false;
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    drive.direct(0, 0);
+                }
+            };
+        });
+
+        // Shooter
+        routines.action("shooter.spin", parameter -> {
+            double velocity = parse(new Signature("shooter.spin").number("velocity"), parameter).getNumber(0);
+            // Keeps the flywheel at speed until interrupted (use in a parallel or deadline group)
+            return new Routines.Step() {
+                @Override
+                public boolean update() {
+                    flywheelReady = shooter.setShooterVelocity(velocity);
+                    return false;
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    flywheelReady = false;
+                    shooter.setShooterVelocity(0);
+                }
+            };
+        });
+        routines.action("shooter.hood", parameter -> {
+            double angle = parse(new Signature("shooter.hood").number("angle"), parameter).getNumber(0);
+            return () -> shooter.setHoodPosition(angle);
+        });
+        routines.action("shooter.turret", parameter -> {
+            double angle = parse(new Signature("shooter.turret").number("angle"), parameter).getNumber(0);
+            return new Routines.Step() {
+                @Override
+                public boolean update() {
+                    return shooter.setTurretPosition(angle);
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    shooter.setTurretVelocity(0);
+                }
+            };
+        });
+
+        // Feeding
+        routines.action("indexer.shoot", parameter -> {
+            Signature signature = parse(new Signature("indexer.shoot").optional().integer("count"), parameter);
+            int count = signature.has(0) ? signature.getInteger(0) : Integer.MAX_VALUE;
+            // Shoots the given number of balls (or all of them) once the flywheel is ready
+            return new Routines.Step() {
+                private int target = -1;
+
+                @Override
+                public boolean update() {
+                    if (target < 0)
+                        target = Math.max(indexer.getBalls() - count, 0);
+                    feeder.feed(indexer.update(true, flywheelReady));
+                    // Fails the routine rather than counting the jam as shots
+                    if (indexer.isJammed())
+                        throw new IllegalStateException("Indexer jammed with " + indexer.getBalls() + " balls left");
+                    return indexer.getBalls() <= target;
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    feeder.feed(KobeFeeder.Direction.Stop);
+                }
+            };
+        });
+        routines.action("feeder.roll", parameter -> {
+            KobeFeeder.Direction direction = parse(new Signature("feeder.roll").choice("direction", "in", "out"), parameter).getChoice(0) == 0 ? KobeFeeder.Direction.In : KobeFeeder.Direction.Out;
+            // Runs until interrupted
+            return new Routines.Step() {
+                @Override
+                public boolean update() {
+                    feeder.roll(direction, true);
+                    return false;
+                }
+
+                @Override
+                public void end(boolean interrupted) {
+                    feeder.roll(KobeFeeder.Direction.Stop, true);
+                }
+            };
+        });
+    }
+
+    private void declareTasks() {
+        // Sensors first, then control (priority order within a tick)
+        scheduler.task("odometry", 200, 30, drive::updateOdometry);
+        scheduler.task("drive", 100, 20, () -> {
+            if (mode == 1) {
+                if (routines.isRunning()) {
+                    routines.update();
+                } else {
+                    autonomous.next();
+                }
+            } else {
+                handleDrive();
+            }
+            controlled = true;
+        });
+        scheduler.task("mechanisms", 50, Scheduler.CRITICAL, () -> {
+            shooter.updatePositions();
+            if (mode == 2)
+                handleMechanisms();
+        });
+        // Power budget (requests are from the previous allocation)
+        scheduler.task("power", 50, 5, () -> {
+            drive.updateVoltage(power.getVoltage());
+            power.update();
+            // Spin-ups are slowed when the battery model predicts a brownout (needs only the total current, not the channels)
+            double shooterScale = shooter.isSpinningUp() ? spinUpScale() : 1;
+            if (POWER_BUDGETING) {
+                drive.setPowerScale(driveBudget.getScale());
+                shooterScale = Math.min(shooterScale, shooterBudget.getScale());
+                feeder.setPowerScale(feederBudget.getScale());
+            }
+            shooter.setPowerScale(shooterScale);
+        });
+        scheduler.task("telemetry", 10, 1, () -> {
+            set("time", String.valueOf(millis() - offset));
+            drive.publish();
+            rgb.publish();
+            // CAN statistics
+            can.update();
+            // Deferred startup stages
+            startup.update();
+        });
+        scheduler.task("leds", 5, 0, () -> {
+            if (mode == 2)
+                updateLEDs();
+        });
+        scheduler.task("diagnostics", 2, 0, diagnostics::publish);
+    }
+
+    // Fraction of the spin-up current the battery can give while staying above the floor (the drive keeps what it draws)
+    private double spinUpScale() {
+        double present = power.predictVoltage(0);
+        double predicted = power.predictVoltage(SHOOTER_SPINUP_CURRENT);
+        if (predicted >= BROWNOUT_FLOOR)
+            return 1;
+        return present > BROWNOUT_FLOOR ? (present - BROWNOUT_FLOOR) / (present - predicted) : 0;
+    }
 
-        // Update odometry
-        drive.updateOdometry();
+    private static List<Point> waypoints(String action, String parameter) {
+        List<Point> waypoints = PathManager.parseWaypoints(parameter);
+        if (waypoints == null)
+            throw new IllegalArgumentException("Usage: " + action + " " + PathManager.WAYPOINTS_USAGE);
+        return waypoints;
+    }
+
+    private static Signature parse(Signature signature, String parameter) {
+        return signature.require(parameter);
+    }
 
-        // Update shooter positions
-        shooter.updatePositions();
+    private void record() {
+        // Fill in the cycle's values (same order as the schema)
+        int index = 0;
+        recorder.put(channels[index++], mode);
+        recorder.put(channels[index++], controlled ? 1 : 0);
+        recorder.put(channels[index++], leftStick);
+        recorder.put(channels[index++], rightStick);
+        recorder.put(channels[index++], manager.pollFollowed());
+        recorder.put(channels[index++], cyclePeriod);
+        recorder.put(channels[index++], Clock.seconds() - cycleStart);
+        // After the power task, the voltage the next cycle's control uses
+        recorder.put(channels[index++], drive.getVoltage());
+        recorder.put(channels[index++], drive.getEncoders()[0]);
+        recorder.put(channels[index++], drive.getEncoders()[1]);
+        recorder.put(channels[index++], drive.getRates()[0]);
+        recorder.put(channels[index++], drive.getRates()[1]);
+        recorder.put(channels[index++], drive.getEncoderMicros());
+        recorder.put(channels[index++], Gyroscope.getReadMicros());
+        recorder.put(channels[index++], drive.left.getPower());
+        recorder.put(channels[index++], drive.right.getPower());
+        recorder.put(channels[index++], drive.odometry.getAngle());
+        recorder.put(channels[index++], drive.odometry.getCurvature());
+        recorder.put(channels[index++], drive.odometry.getX());
+        recorder.put(channels[index++], drive.odometry.getY());
+        recorder.put(channels[index++], shooter.getShooterSetPoint());
+        recorder.put(channels[index++], shooter.getHoodSetPoint());
+        recorder.put(channels[index++], shooter.getTurretSetPoint());
+        recorder.put(channels[index++], shooter.getLastShooterPosition());
+        recorder.put(channels[index++], shooter.getLastShooterVelocity());
+        recorder.put(channels[index++], shooter.getLastTurretPosition());
+        recorder.put(channels[index], shooter.getLastHoodPosition());
+        // Append
+        recorder.commit();
+    }
+
+    private void loop() {
+        // Loop timing
+        Clock.tick();
+        diagnostics.begin();
+        double time = Clock.cycleSeconds();
+        cyclePeriod = cycleStart > 0 ? time - cycleStart : 0;
+        cycleStart = time;
+        // Run whatever is due this tick
+        controlled = false;
+        scheduler.run();
+        // Record every tick, replay runs control only on ticks that had it
+        record();
+        // Allocations of the whole cycle, overruns matched against GC pauses
+        diagnostics.end(scheduler.wasOverrun());
     }
 
     @Override
     public void autonomousSetup() {
-        // Update offset
-        offset = millis();
+        setup();
+        drive.resetControl();
+        // Run the selected on-robot routine (the laptop drives autonomous when there is none), once the files are loaded
+        startup.await("routine-files", ROUTINES_BUDGET_MILLIS);
+        routines.start();
     }
 
     @Override
     public void teleopSetup() {
-        autonomousSetup();
+        setup();
+        // Stop whatever autonomous left running
+        routines.stop();
+        // Reset teleop drive state and the drive controllers
+        drive.resetControl();
+    }
+
+    private void setup() {
+        // Update offset
+        offset = millis();
+        // Start recording
+        recorder.start();
     }
 
     @Override
     public void autonomousLoop() {
-        // Update all
-        updateAll();
-
-        // Runtime
-        autonomous.next();
+        mode = 1;
+        loop();
     }
 
     @Override
     public void teleopLoop() {
-        // Update all
-        updateAll();
+        mode = 2;
+        loop();
 //        log("right: " + drive.right.getEncoder().getRaw());
 //        log("left: " + drive.left.getEncoder().getRaw());
-        // Production
-        handleControllers();
 //        if (operator.getBButton())
 //            manager.followTrajectory(false);
 //        else
@@ -143,7 +617,30 @@ public class Kobe extends FRCRobot {
     }
 
 
-    private void handleControllers() {
+    private void handleDrive() {
+        leftStick = -driverLeft.getY();
+        rightStick = -driverRight.getY();
+        drive.driveTank(leftStick, rightStick);
+        // Power request for the next allocation
+        driveBudget.request(drive.getDemand() / 2 * DRIVE_CURRENT);
+    }
+
+    private void updateLEDs() {
+        // Flywheel feedback
+        if (General.deadband(flywheelTarget, DEADBAND) != 0) {
+            if (flywheelAccelerated) {
+                rgb.setPattern(Pattern.fill(Color.GREEN));
+            } else {
+                // Quantized, so the frame only changes (and is sent) once per step
+                double fraction = Math.floor(Math.abs(shooter.getLastShooterVelocity() / flywheelTarget) * LED_PROGRESS_STEPS) / LED_PROGRESS_STEPS;
+                rgb.setPattern(Pattern.progress(Color.ORANGE, Color.BLACK, fraction));
+            }
+        } else {
+            rgb.restore();
+        }
+    }
+
+    private void handleMechanisms() {
         // Setpoint lock
         shooter.setSetPointLock(operator.getAButton());
 
@@ -159,20 +656,27 @@ public class Kobe extends FRCRobot {
         KobeFeeder.Direction rollerDirection = KobeFeeder.Direction.Stop;
         KobeFeeder.Direction sliderDirection = KobeFeeder.Direction.Stop;
 
+        // Firing solution - while Y is held, flywheel, hood and turret follow the solver
+        boolean solving = false;
+        if (operator.getYButton()) {
+            drive.getChassisVelocity(chassisVelocity);
+            solving = solver.solve(drive.getOdometry().getX(), drive.getOdometry().getY(), drive.getOdometry().getAngle(), chassisVelocity[0], chassisVelocity[1]);
+        }
+
         // Flywheel
-        if (!operator.getAButton()) {
+        if (solving) {
+            shooterVelocity = solver.getFlywheelVelocity();
+        } else if (!operator.getAButton()) {
             // Shooter velocity from controller
             shooterVelocity = General.deadband(-operator.getY(GenericHID.Hand.kRight), DEADBAND) * 34;
         } else {
             shooterVelocity = shooter.getShooterSetPoint();
         }
         // Check flywheel acceleration to initiate feeding
-        boolean flywheelAccelerated = shooter.setShooterVelocity(shooterVelocity);
-        // Make sure the input is not 0 and that we accelerated
-        if (flywheelAccelerated && General.deadband(shooterVelocity, DEADBAND) != 0) {
-            if (shooterVelocity > 0)
-                feederDirection = KobeFeeder.Direction.In;
-        }
+        flywheelAccelerated = shooter.setShooterVelocity(shooterVelocity);
+        flywheelTarget = shooterVelocity;
+        // Ball indexing - stages the next ball and feeds only when the flywheel is ready
+        feederDirection = indexer.update(General.deadband(shooterVelocity, DEADBAND) > 0, flywheelAccelerated);
         // Read feeder delta from operator
         double feederDeltaManual = General.deadband(operator.getTriggerAxis(GenericHID.Hand.kLeft), DEADBAND) - General.deadband(operator.getTriggerAxis(GenericHID.Hand.kRight), DEADBAND);
         // Check if the delta is not 0
@@ -183,7 +687,9 @@ public class Kobe extends FRCRobot {
         feeder.feed(feederDirection);
 
         // Hood
-        if (!operator.getAButton()) {
+        if (solving) {
+            hoodPosition = Math.max(KobeShooter.HOOD_SAFE_MINIMUM_ANGLE, Math.min(KobeShooter.HOOD_SAFE_MAXIMUM_ANGLE, solver.getElevation()));
+        } else if (!operator.getAButton()) {
             if (General.deadband(shooterVelocity, DEADBAND) != 0) {
                 hoodPosition = KobeShooter.HOOD_SAFE_MINIMUM_ANGLE;
             }
@@ -212,7 +718,11 @@ public class Kobe extends FRCRobot {
             turretVelocity = shooter.getTurretSetPoint();
         }
         // Set turret
-        shooter.setTurretVelocity(-turretVelocity / 5);
+        if (solving) {
+            shooter.setTurretPosition(solver.getTurretAngle());
+        } else {
+            shooter.setTurretVelocity(-turretVelocity / 5);
+        }
 
         // Move slider
         // Block other roller input
@@ -236,7 +746,9 @@ public class Kobe extends FRCRobot {
         // Slide & Roll
         feeder.roll(rollerDirection, rollerSpeed);
         feeder.slide(sliderDirection);
-        // Drive
-        drive.direct(-driverLeft.getY(), -driverRight.getY());
+
+        // Power requests for the next allocation
+        shooterBudget.request(shooter.isSpinningUp() ? SHOOTER_SPINUP_CURRENT : shooterBudget.getMeasured());
+        feederBudget.request(rollerDirection != KobeFeeder.Direction.Stop ? ROLLER_CURRENT : feederBudget.getMeasured());
     }
 }
\ No newline at end of file
@@ -20,6 +20,10 @@ public class KobeDrive extends DifferentialDrive<PWMSparkMax> {
 
         right.setEncoder(new Encoder(0, 1));
         left.setEncoder(new Encoder(3, 2));
+        right.getEncoder().setSamplesToAverage(PERIOD_SAMPLES);
+        left.getEncoder().setSamplesToAverage(PERIOD_SAMPLES);
+        right.getEncoder().setMaxPeriod(MAXIMUM_PERIOD);
+        left.getEncoder().setMaxPeriod(MAXIMUM_PERIOD);
 
         right.setDirection(MotorGroup.BACKWARD);
         resetOdometry();
@@ -8,17 +8,32 @@ import com.ga2230.shleam.base.structure.Result;
 import com.revrobotics.CANSparkMax;
 import com.revrobotics.CANSparkMaxLowLevel;
 import edu.wpi.first.wpilibj.DigitalInput;
-import frc.robot.base.utils.General;
+import frc.robot.base.can.CANManager;
+import frc.robot.base.can.MotorConfig;
+import frc.robot.base.can.MotorConfigurator;
+import frc.robot.base.utils.JamDetector;
+import frc.robot.base.utils.Signature;
 
 public class KobeFeeder extends FRCModule {
 
     private static final boolean USE_MICROSWITCHES = false;
 
-    private static final double FEEDER_MAX_CURRENT_DERIVATIVE = 1;
+    // Jam detection (amps)
+    private static final double FEEDER_NORMAL_CURRENT = 5;
+    private static final double FEEDER_STALL_CURRENT = 20;
+    private static final double ROLLER_NORMAL_CURRENT = 5;
+    private static final double ROLLER_STALL_CURRENT = 25;
 
-    private double lastCurrent = 0;
-    private double currentCurrent = 0;
-    private long time = 0;
+    private JamDetector feederJam;
+    private JamDetector rollerJam;
+
+    // Last readings
+    private double feederCurrent = 0;
+    private double rollerCurrent = 0;
+    private Direction rollerDirection = Direction.Stop;
+
+    // Power budgeting
+    private double powerScale = 1;
 
     // Slider
     private WPI_TalonSRX slider;
@@ -40,23 +55,41 @@ public class KobeFeeder extends FRCModule {
 
         // Collector
         roller = new WPI_TalonSRX(17);
-        General.setupMotor(roller, FeedbackDevice.CTRE_MagEncoder_Relative, 0, 0, 0, 0.01);
 
         // Feeder
         feeder = new CANSparkMax(18, CANSparkMaxLowLevel.MotorType.kBrushless);
 
+        // Jam detectors
+        feederJam = new JamDetector("feeder_jam", FEEDER_NORMAL_CURRENT, FEEDER_STALL_CURRENT);
+        rollerJam = new JamDetector("roller_jam", ROLLER_NORMAL_CURRENT, ROLLER_STALL_CURRENT);
+
+        adopt(feederJam);
+        adopt(rollerJam);
+
         register("feed", new Function() {
+
+            private Signature signature = new Signature("feed").choice("direction", "in", "out", "stop");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                feed(General.fromString(parameter));
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                feed(Direction.values()[signature.getChoice(0)]);
                 return Result.finished("Set");
             }
         });
 
         register("slide", new Function() {
+
+            private Signature signature = new Signature("slide").choice("direction", "in", "out", "stop");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                if (slide(General.fromString(parameter))) {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                if (slide(Direction.values()[signature.getChoice(0)])) {
                     return Result.finished("Set");
                 } else {
                     return Result.notFinished("Limit-switch error");
@@ -65,19 +98,52 @@ public class KobeFeeder extends FRCModule {
         });
 
         register("roll", new Function() {
+
+            private Signature signature = new Signature("roll").choice("direction", "in", "out", "stop");
+
             @Override
             public Result execute(String parameter) throws Exception {
-                roll(General.fromString(parameter), true);
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                roll(Direction.values()[signature.getChoice(0)], true);
                 return Result.finished("Set");
             }
         });
     }
 
+    public void declareConfigs(MotorConfigurator motors) {
+        motors.talon("roller", roller, new MotorConfig()
+                .sensor(FeedbackDevice.CTRE_MagEncoder_Relative)
+                .gains(0, 0, 0, 0.01));
+    }
+
+    public void declareSignals(CANManager can) {
+        // Current for jam and intake detection
+        can.talon("roller", roller)
+                .signal(CANManager.Signal.Current, 20);
+        // Output only
+        can.talon("slider", slider);
+        // Current for jam detection, position for staging
+        can.spark("feeder", feeder)
+                .signal(CANManager.Signal.Current, 20)
+                .signal(CANManager.Signal.Position, 20);
+    }
+
+    public void setPowerScale(double powerScale) {
+        // A broken budget must not reach the motors
+        this.powerScale = Double.isNaN(powerScale) ? 1 : Math.max(0, Math.min(1, powerScale));
+    }
+
     public void roll(Direction direction, boolean fast) {
+        // Jam detection (reverses the direction to clear a jam)
+        rollerCurrent = roller.getOutputCurrent();
+        rollerDirection = direction;
+        direction = clear(rollerJam.update(rollerCurrent, direction != Direction.Stop), direction);
         if (direction == Direction.Stop) {
             roller.set(0);
         } else {
-            double speed = fast ? 0.75 : 0.5;
+            double speed = (fast ? 0.75 : 0.5) * powerScale;
             if (direction == Direction.In) {
                 roller.set(speed);
             } else {
@@ -87,14 +153,11 @@ public class KobeFeeder extends FRCModule {
     }
 
     public void feed(Direction direction) {
-        // Switch errors
-        lastCurrent = currentCurrent;
-        currentCurrent = feeder.getOutputCurrent();
-        // Calculate current limit
-        long delta = time - millis();
-        boolean overCurrent = delta == 0 || Math.abs((currentCurrent - lastCurrent) / delta) > FEEDER_MAX_CURRENT_DERIVATIVE;
-        set("test-current", String.valueOf(currentCurrent));
-        if (direction == Direction.Stop || overCurrent) {
+        // Jam detection (reverses the direction to clear a jam)
+        feederCurrent = feeder.getOutputCurrent();
+        set("test-current", String.valueOf(feederCurrent));
+        direction = clear(feederJam.update(feederCurrent, direction != Direction.Stop), direction);
+        if (direction == Direction.Stop) {
             feeder.set(0);
         } else {
             if (direction == Direction.In) {
@@ -105,6 +168,32 @@ public class KobeFeeder extends FRCModule {
         }
     }
 
+    public double getFeederCurrent() {
+        return feederCurrent;
+    }
+
+    public double getRollerCurrent() {
+        return rollerCurrent;
+    }
+
+    // Requested (not jam-corrected) roller direction
+    public Direction getRollerDirection() {
+        return rollerDirection;
+    }
+
+    // Feeder motor rotations
+    public double getFeederPosition() {
+        return feeder.getEncoder().getPosition();
+    }
+
+    private Direction clear(JamDetector.Action action, Direction direction) {
+        if (action == JamDetector.Action.Stop)
+            return Direction.Stop;
+        if (action == JamDetector.Action.Reverse)
+            return direction == Direction.In ? Direction.Out : Direction.In;
+        return direction;
+    }
+
     public void limitSwitchTest() {
         set("min_sw", String.valueOf(closeSwitch.get()));
         set("max_sw", String.valueOf(openSwitch.get()));
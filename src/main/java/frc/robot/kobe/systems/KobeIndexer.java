@@ -0,0 +1,217 @@
+package frc.robot.kobe.systems;
+
+import com.ga2230.shleam.advanced.frc.FRCModule;
+import com.ga2230.shleam.base.structure.Function;
+import com.ga2230.shleam.base.structure.Result;
+import edu.wpi.first.wpilibj.DigitalInput;
+import frc.robot.base.utils.Clock;
+import frc.robot.base.utils.Signature;
+
+public class KobeIndexer extends FRCModule {
+
+    private static final int MAXIMUM_BALLS = 5;
+
+    // Intake detection - the roller current bumps while a ball is pulled in
+    private static final double INTAKE_CURRENT = 12;
+    private static final double INTAKE_SPACING = 0.3; // Seconds between two counted balls
+
+    // Staging - feeder rotations from the bottom of the magazine to right below the flywheel
+    private static final double STAGE_ROTATIONS = 3;
+    private static final double STAGE_TIMEOUT = 1.5;
+
+    // Shot detection - the flywheel slows down when a ball goes through
+    private static final double SHOT_DIP = 1.5; // m/s
+    private static final double SHOT_TIMEOUT = 0.75;
+
+    private KobeFeeder feeder;
+    private KobeShooter shooter;
+
+    // Optional beam-breaks (null if not installed)
+    private DigitalInput intakeBeam;
+    private DigitalInput stageBeam;
+
+    private State state = State.Idle;
+    private double stateTime = 0;
+    private double stateFeederPosition = 0;
+
+    private int balls = 0;
+    private boolean staged = false;
+
+    private double lastIntakeTime = 0;
+    private boolean intakeHigh = false;
+    private boolean rolling = false;
+    private boolean intakeBeamBroken = false;
+
+    private int shots = 0;
+    private int missed = 0;
+
+    public KobeIndexer(KobeFeeder feeder, KobeShooter shooter, int intakeBeamChannel, int stageBeamChannel) {
+        super("indexer");
+        this.feeder = feeder;
+        this.shooter = shooter;
+
+        if (intakeBeamChannel >= 0)
+            intakeBeam = new DigitalInput(intakeBeamChannel);
+        if (stageBeamChannel >= 0)
+            stageBeam = new DigitalInput(stageBeamChannel);
+
+        register("balls", new Function() {
+
+            private Signature signature = new Signature("balls").optional().integer("count");
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                // Corrects the count (e.g. preloaded balls)
+                if (signature.has(0)) {
+                    balls = Math.max(0, Math.min(MAXIMUM_BALLS, signature.getInteger(0)));
+                    staged = false;
+                }
+                return Result.finished(String.valueOf(balls));
+            }
+        });
+    }
+
+    // Decides the feeder direction for this cycle
+    public KobeFeeder.Direction update(boolean shoot, boolean flywheelReady) {
+        double time = Clock.cycleSeconds();
+        double feederPosition = feeder.getFeederPosition();
+        double moved = Math.abs(feederPosition - stateFeederPosition);
+
+        // Count incoming balls
+        countIntake(time);
+
+        KobeFeeder.Direction direction = KobeFeeder.Direction.Stop;
+        switch (state) {
+            case Idle:
+                if (shoot && flywheelReady && balls > 0) {
+                    setState(staged ? State.Firing : State.Staging, time, feederPosition);
+                } else if (!staged && balls > 0) {
+                    setState(State.Staging, time, feederPosition);
+                } else if (shoot && flywheelReady) {
+                    // The count might be wrong, feed anyway
+                    direction = KobeFeeder.Direction.In;
+                }
+                break;
+            case Staging:
+                direction = KobeFeeder.Direction.In;
+                // Staged by the beam-break, or by feeder travel when there is none
+                boolean reached = stageBeam != null ? !stageBeam.get() : moved >= STAGE_ROTATIONS;
+                if (reached) {
+                    staged = true;
+                    setState(State.Idle, time, feederPosition);
+                    direction = KobeFeeder.Direction.Stop;
+                } else if (time - stateTime > STAGE_TIMEOUT) {
+                    // Nothing got there, the count was wrong
+                    balls = 0;
+                    setState(State.Idle, time, feederPosition);
+                    direction = KobeFeeder.Direction.Stop;
+                }
+                break;
+            case Firing:
+                if (!shoot) {
+                    setState(State.Idle, time, feederPosition);
+                    break;
+                }
+                direction = KobeFeeder.Direction.In;
+                // The ball left when the flywheel dipped or the beam cleared
+                boolean left = stageBeam != null ? stageBeam.get() : shooter.getRampedVelocity() != 0 && Math.abs(shooter.getLastShooterVelocity()) < Math.abs(shooter.getRampedVelocity()) - SHOT_DIP;
+                if (left) {
+                    balls = Math.max(balls - 1, 0);
+                    staged = false;
+                    shots++;
+                    setState(State.Recovering, time, feederPosition);
+                } else if (time - stateTime > SHOT_TIMEOUT) {
+                    // Nothing left the shooter - a jam, not a shot
+                    missed++;
+                    setState(State.Jammed, time, feederPosition);
+                    direction = KobeFeeder.Direction.Stop;
+                }
+                break;
+            case Jammed:
+                // Stay stopped until the shot request is released
+                if (!shoot)
+                    setState(State.Idle, time, feederPosition);
+                break;
+            case Recovering:
+                // Wait for the flywheel to get back to speed, while bringing the next ball up
+                if (balls > 0 && !staged) {
+                    direction = KobeFeeder.Direction.In;
+                    boolean reachedNext = stageBeam != null ? !stageBeam.get() : moved >= STAGE_ROTATIONS;
+                    if (reachedNext) {
+                        staged = true;
+                        stateFeederPosition = feederPosition;
+                    }
+                }
+                if (staged || balls == 0) {
+                    direction = KobeFeeder.Direction.Stop;
+                    if (flywheelReady)
+                        setState(shoot && balls > 0 ? State.Firing : State.Idle, time, feederPosition);
+                }
+                if (time - stateTime > STAGE_TIMEOUT + SHOT_TIMEOUT)
+                    setState(State.Idle, time, feederPosition);
+                break;
+        }
+
+        set("state", state.name());
+        set("balls", String.valueOf(balls));
+        set("staged", String.valueOf(staged));
+        set("shots", String.valueOf(shots));
+        set("missed", String.valueOf(missed));
+        return direction;
+    }
+
+    public int getBalls() {
+        return balls;
+    }
+
+    public boolean isJammed() {
+        return state == State.Jammed;
+    }
+
+    public boolean isStaged() {
+        return staged;
+    }
+
+    private void countIntake(double time) {
+        boolean counted = false;
+        if (intakeBeam != null) {
+            // Count on the beam's falling edge
+            boolean broken = !intakeBeam.get();
+            counted = broken && !intakeBeamBroken;
+            intakeBeamBroken = broken;
+        } else if (feeder.getRollerDirection() == KobeFeeder.Direction.In) {
+            // Ignore the roller's own inrush right after it started
+            if (!rolling)
+                lastIntakeTime = time;
+            rolling = true;
+            // Count on the current's rising edge
+            boolean high = feeder.getRollerCurrent() > INTAKE_CURRENT;
+            counted = high && !intakeHigh && time - lastIntakeTime > INTAKE_SPACING;
+            intakeHigh = high;
+        } else {
+            intakeHigh = false;
+            rolling = false;
+        }
+        if (counted) {
+            lastIntakeTime = time;
+            balls = Math.min(balls + 1, MAXIMUM_BALLS);
+        }
+    }
+
+    private void setState(State state, double time, double feederPosition) {
+        this.state = state;
+        this.stateTime = time;
+        this.stateFeederPosition = feederPosition;
+    }
+
+    public enum State {
+        Idle,
+        Staging,
+        Firing,
+        Recovering,
+        Jammed
+    }
+}
@@ -10,7 +10,14 @@ import com.ga2230.shleam.base.structure.Result;
 import edu.wpi.first.wpilibj.AnalogPotentiometer;
 import edu.wpi.first.wpilibj.Servo;
 import edu.wpi.first.wpilibj.interfaces.Potentiometer;
+import frc.robot.base.can.CANManager;
+import frc.robot.base.can.MotorConfig;
+import frc.robot.base.can.MotorConfigurator;
+import frc.robot.base.control.RelayTuner;
+import frc.robot.base.utils.Clock;
 import frc.robot.base.utils.General;
+import frc.robot.base.utils.Logger;
+import frc.robot.base.utils.Signature;
 
 public class KobeShooter extends FRCModule {
 
@@ -42,6 +49,9 @@ public class KobeShooter extends FRCModule {
     private static final double SHOOTER_ENCODER_TICKS = 2048;
     private static final double SHOOTER_WHEEL_RADIUS = 0.0762;
     private static final double SHOOTER_VELOCITY_THRESHOLD = 2;
+    private static final double SHOOTER_TUNING_VELOCITY = 15;
+    private static final double SHOOTER_LIMITED_ACCELERATION = 25; // Setpoint rise (m/s per second) when the power budget is exhausted
+    private static final double SHOOTER_KF = 0.07;
 
     private WPI_TalonSRX shooter1;
     private WPI_TalonSRX shooter2;
@@ -51,12 +61,25 @@ public class KobeShooter extends FRCModule {
     private static final double TURRET_ENCODER_TICKS = 4096; // Verified by Idan
     private static final double TURRET_THRESHOLD_VELOCITY = 0.1;
     private static final double TURRET_THRESHOLD_TICKS = 10;
+    private static final double TURRET_KF = 0.23;
     private static final double TURRET_GEAR = 240.0 / 22.0; // Verified by Libi (16/02/2020, Nadav, Old = 182.6/17.5)
 
     private int turretOffsetTicks;
 
+    // Power budgeting
+    private double powerScale = 1;
+    private double rampedVelocity = 0;
+    private double rampTime = -1;
+
+    // Last measured positions
+    private double shooterPosition, turretPosition, hoodPosition, shooterVelocity;
+
     private WPI_TalonSRX turret;
 
+    // Logs
+    private Logger logger = new Logger("shooter");
+    private Logger.Site setpointsLog = logger.site(Logger.Level.Debug, 1000);
+
     // Setpoints
     private double shooterVelocitySetPoint, hoodPositionSetPoint, turretVelocitySetPoint;
     private boolean setpointLock = false;
@@ -70,16 +93,12 @@ public class KobeShooter extends FRCModule {
 
         // Turret things
         turret = new WPI_TalonSRX(19);
-
-        General.setupMotor(turret, FeedbackDevice.PulseWidthEncodedPosition, 0, 0.0001, 0, 0.23);
         turret.setSensorPhase(true); // Flip encoder polarity (+/-)
 
         // Shooter things
         shooter1 = new WPI_TalonSRX(20);
         shooter2 = new WPI_TalonSRX(21);
         shooter3 = new WPI_TalonSRX(22);
-
-        General.setupMotor(shooter1, FeedbackDevice.CTRE_MagEncoder_Relative, 1, 0.00001, 0, 0.07); // OMG magic
         shooter1.setSensorPhase(true); // Flip encoder polarity (+/-)
 
         shooter1.setNeutralMode(NeutralMode.Coast);
@@ -97,17 +116,22 @@ public class KobeShooter extends FRCModule {
         // Commands
 
         register("setpoints", new Function() {
+
+            private Signature signature = new Signature("setpoints").number("shooter").number("hood").number("turret");
+
             @Override
             public Result execute(String parameter) throws Exception {
                 if (!setpointLock) {
-                    String[] parameters = parameter.split(" ");
-                    shooterVelocitySetPoint = Double.parseDouble(parameters[0]);
-                    hoodPositionSetPoint = Double.parseDouble(parameters[1]);
-                    turretVelocitySetPoint = Double.parseDouble(parameters[2]);
-                    set("shooter-setpoint", parameters[0]);
-                    set("hood-setpoint", parameters[1]);
-                    set("turret-setpoint", parameters[2]);
-                    log("SetPoints: " + shooterVelocitySetPoint + " " + hoodPositionSetPoint + " " + turretVelocitySetPoint);
+                    Result error = signature.parse(parameter);
+                    if (error != null)
+                        return error;
+                    shooterVelocitySetPoint = signature.getNumber(0);
+                    hoodPositionSetPoint = signature.getNumber(1);
+                    turretVelocitySetPoint = signature.getNumber(2);
+                    set("shooter-setpoint", String.valueOf(shooterVelocitySetPoint));
+                    set("hood-setpoint", String.valueOf(hoodPositionSetPoint));
+                    set("turret-setpoint", String.valueOf(turretVelocitySetPoint));
+                    setpointsLog.log("SetPoints: %f %f %f", shooterVelocitySetPoint, hoodPositionSetPoint, turretVelocitySetPoint);
                     return Result.finished("Thanks man");
                 } else {
                     return Result.notFinished("Setpoint lock");
@@ -115,6 +139,57 @@ public class KobeShooter extends FRCModule {
             }
         });
 
+        register("tune", new Function() {
+
+            private Signature signature = new Signature("tune").choice("target", "shooter", "turret").choice("rule", RelayTuner.Rule.names()).optional().choice("apply", "apply");
+
+            private RelayTuner tuner = null;
+            // What the tuner was built for, another target or rule starts over
+            private int tunerTarget = -1;
+            private int tunerRule = -1;
+
+            @Override
+            public Result execute(String parameter) throws Exception {
+                Result error = signature.parse(parameter);
+                if (error != null)
+                    return error;
+                boolean flywheel = signature.getChoice(0) == 0;
+                WPI_TalonSRX talon = flywheel ? shooter1 : turret;
+                // Native units - ticks/100ms for the flywheel, ticks for the turret
+                double measurement = flywheel ? talon.getSelectedSensorVelocity() : talon.getSelectedSensorPosition();
+                if (tuner != null && (signature.getChoice(0) != tunerTarget || signature.getChoice(1) != tunerRule || tuner.isAbandoned(Clock.seconds()))) {
+                    // Leave the other mechanism the way the abandoned run found it
+                    (tunerTarget == 0 ? shooter1 : turret).set(ControlMode.PercentOutput, 0);
+                    tuner = null;
+                }
+                if (tuner == null) {
+                    tunerTarget = signature.getChoice(0);
+                    tunerRule = signature.getChoice(1);
+                    if (flywheel) {
+                        double setpoint = SHOOTER_TUNING_VELOCITY * ((SHOOTER_ENCODER_TICKS * TALON_RATE) / (2 * Math.PI * SHOOTER_WHEEL_RADIUS));
+                        tuner = new RelayTuner(setpoint, SHOOTER_KF * setpoint / 1023, 0.1, 20, 4, 15);
+                    } else {
+                        tuner = new RelayTuner(measurement, 0, 0.15, TURRET_THRESHOLD_TICKS, 4, 10);
+                    }
+                }
+                talon.set(ControlMode.PercentOutput, tuner.update(measurement, Clock.seconds()));
+                if (!tuner.isFinished())
+                    return Result.notFinished("Tuning");
+                // Done
+                RelayTuner finished = tuner;
+                tuner = null;
+                talon.set(ControlMode.PercentOutput, 0);
+                if (finished.hasFailed())
+                    return Result.finished("Tuning failed");
+                double[] gains = RelayTuner.toTalonGains(finished.getGains(RelayTuner.Rule.values()[signature.getChoice(1)]));
+                double kF = flywheel ? finished.getFeedForward() * 1023 : TURRET_KF;
+                if (signature.has(2)) {
+                    General.configurePIDF(talon, gains[0], gains[1], gains[2], kF);
+                }
+                return Result.finished("Ku " + finished.getUltimateGain() + " Tu " + finished.getUltimatePeriod() + " PIDF " + gains[0] + " " + gains[1] + " " + gains[2] + " " + kF);
+            }
+        });
+
         register("follow", new Function() {
             @Override
             public Result execute(String parameter) throws Exception {
@@ -130,6 +205,29 @@ public class KobeShooter extends FRCModule {
         });
     }
 
+    public void declareConfigs(MotorConfigurator motors) {
+        motors.talon("turret", turret, new MotorConfig()
+                .sensor(FeedbackDevice.PulseWidthEncodedPosition)
+                .gains(0, 0.0001, 0, TURRET_KF));
+        motors.talon("shooter1", shooter1, new MotorConfig()
+                .sensor(FeedbackDevice.CTRE_MagEncoder_Relative)
+                .gains(1, 0.00001, 0, SHOOTER_KF)); // OMG magic
+    }
+
+    public void declareSignals(CANManager can) {
+        // Flywheel velocity every cycle, position for telemetry
+        can.talon("shooter1", shooter1)
+                .signal(CANManager.Signal.Velocity, 20)
+                .signal(CANManager.Signal.Position, 20);
+        // Followers are never read
+        can.talon("shooter2", shooter2);
+        can.talon("shooter3", shooter3);
+        // Turret position (pulse width encoder)
+        can.talon("turret", turret)
+                .signal(CANManager.Signal.Position, 20)
+                .signal(CANManager.Signal.Velocity, 20);
+    }
+
     public void setSetPointLock(boolean setpointLock) {
         this.setpointLock = setpointLock;
     }
@@ -152,6 +250,22 @@ public class KobeShooter extends FRCModule {
         return turretVelocitySetPoint;
     }
 
+    public double getLastShooterPosition() {
+        return shooterPosition;
+    }
+
+    public double getLastShooterVelocity() {
+        return shooterVelocity;
+    }
+
+    public double getLastTurretPosition() {
+        return turretPosition;
+    }
+
+    public double getLastHoodPosition() {
+        return hoodPosition;
+    }
+
     public boolean followHoodSetPoint() {
         return setHoodPosition(hoodPositionSetPoint);
     }
@@ -188,20 +302,47 @@ public class KobeShooter extends FRCModule {
         return false;
     }
 
+    public void setPowerScale(double powerScale) {
+        // A broken budget must not reach the motors
+        this.powerScale = Double.isNaN(powerScale) ? 1 : Math.max(0, Math.min(1, powerScale));
+    }
+
+    public double getRampedVelocity() {
+        return rampedVelocity;
+    }
+
+    public boolean isSpinningUp() {
+        return rampedVelocity != 0 && Math.abs(rampedVelocity - shooterVelocity) >= SHOOTER_VELOCITY_THRESHOLD;
+    }
+
     public boolean setShooterVelocity(double targetVelocity) {
         if (targetVelocity != 0) {
+            // Limit how fast the setpoint rises while the power budget is short (slowing down is never limited)
+            double time = Clock.cycleSeconds();
+            double delta = rampTime < 0 ? 0 : Math.min(time - rampTime, 0.1);
+            rampTime = time;
+            if (powerScale < 1 && Math.abs(targetVelocity) > Math.abs(rampedVelocity)) {
+                double step = SHOOTER_LIMITED_ACCELERATION * delta * powerScale;
+                rampedVelocity += Math.max(-step, Math.min(step, targetVelocity - rampedVelocity));
+            } else {
+                rampedVelocity = targetVelocity;
+            }
             // Velocity is M/S
             double conversion = ((SHOOTER_ENCODER_TICKS * TALON_RATE) / (2 * Math.PI * SHOOTER_WHEEL_RADIUS));
-            double input = targetVelocity * conversion;
+            double input = rampedVelocity * conversion;
             // Set is Tick/100ms
             shooter1.set(ControlMode.Velocity, input);
             // Calculate the current velocity
             double currentVelocity = shooter1.getSelectedSensorVelocity() / conversion;
+            shooterVelocity = currentVelocity;
             set("flywheel", String.valueOf(currentVelocity));
             // Check threshold
             return Math.abs(targetVelocity - currentVelocity) < SHOOTER_VELOCITY_THRESHOLD;
         } else {
             shooter1.set(ControlMode.PercentOutput, 0);
+            shooterVelocity = 0;
+            rampedVelocity = 0;
+            rampTime = -1;
             return true;
         }
     }
@@ -225,18 +366,21 @@ public class KobeShooter extends FRCModule {
 
     public double getHoodPosition() {
         double position = potentiometer.get();
+        hoodPosition = position;
         set("hood", String.valueOf(position));
         return position;
     }
 
     public int getShooterPosition() {
         int position = shooter1.getSelectedSensorPosition();
+        shooterPosition = position;
         set("shooter", String.valueOf(position));
         return position;
     }
 
     public double getTurretPosition() {
         double position = (turret.getSelectedSensorPosition() - turretOffsetTicks) / (TURRET_ENCODER_TICKS / 360.0);
+        turretPosition = position;
         set("turret", String.valueOf(position));
         return position;
     }
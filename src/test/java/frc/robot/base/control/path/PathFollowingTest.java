@@ -0,0 +1,273 @@
+package frc.robot.base.control.path;
+
+import edu.wpi.first.wpilibj.SpeedController;
+import frc.robot.base.drive.DifferentialDrive;
+import frc.robot.base.recorder.Replay;
+import frc.robot.base.utils.Clock;
+import frc.robot.base.utils.General;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Copyright (c) 2019 General Angels
+ * https://github.com/GeneralAngels/RIO20
+ */
+
+// Closed-loop runs of the path follower against a simulated drive, failing when following regresses
+public class PathFollowingTest {
+
+    // Same rates as the robot's scheduler - odometry every tick, the follower every second tick
+    private static final double PERIOD = 0.005;
+    private static final int CONTROL_TICKS = 2;
+    // Plant integration steps per tick
+    private static final int SUBSTEPS = 5;
+
+    // Pigeon yaw frames and their latency
+    private static final double GYRO_FRAME = 0.01;
+    private static final double GYRO_LATENCY = 0.002;
+
+    private static final double BATTERY_VOLTAGE = 12;
+
+    // Segments ahead of the last nearest one searched for the cross-track error
+    private static final int SEARCH_WINDOW = 50;
+
+    // Runs discarded before measuring, so the JIT has compiled the follower
+    private static final int WARMUP_RUNS = 1;
+
+    // Time limits of the robot code per tick (ms) - average thread CPU time, and a wall-clock percentile (a single
+    // slow tick is the machine running the tests, not the follower)
+    private static final double MAXIMUM_AVERAGE_CPU = 0.5;
+    private static final double MAXIMUM_PERCENTILE_TIME = 5;
+    private static final double PERCENTILE = 0.99;
+
+    // -Dpath.verbose=true prints every run
+    private static final boolean VERBOSE = Boolean.getBoolean("path.verbose");
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    // Sensor channels the drive stack reads while Replay is active
+    private static final String[] CHANNELS = {"left-encoder", "right-encoder", "left-rate", "right-rate", "encoder-time", "angle", "gyro-time", "omega"};
+
+    private double[] sensors = new double[CHANNELS.length];
+    private long micros = 0;
+
+    @Before
+    public void start() {
+        Replay.start(CHANNELS);
+        Replay.load(sensors);
+    }
+
+    @After
+    public void stop() {
+        Replay.stop();
+        Clock.stopReplay();
+    }
+
+    @Test
+    public void straight() {
+        // Waypoints, allowed time over the plan (s), maximum and RMS cross-track error (m), final heading error (degrees)
+        check("straight", "3 0 0", 2, 0.1, 0.05, 5);
+    }
+
+    @Test
+    public void sCurve() {
+        check("s-curve", "1.5 0.5 45; 3 1 0", 2, 0.15, 0.08, 5);
+    }
+
+    @Test
+    public void reversal() {
+        check("reversal", "2 0 0 forward; 0.5 0.5 0 reverse", 3, 0.25, 0.12, 5);
+    }
+
+    @Test
+    public void tightTurn() {
+        check("tight-turn", "0.75 0.75 90", 2, 0.15, 0.08, 5);
+    }
+
+    private void check(String name, String waypoints, double slack, double maximumCrossTrack, double maximumRMS, double maximumHeading) {
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            run(waypoints, slack);
+        Run run = run(waypoints, slack);
+        if (VERBOSE)
+            System.out.println(name + " " + run);
+        assertTrue(name + " timed out: " + run, run.finished);
+        assertTrue(name + " maximum cross-track over " + maximumCrossTrack + ": " + run, run.maximumCrossTrack <= maximumCrossTrack);
+        assertTrue(name + " RMS cross-track over " + maximumRMS + ": " + run, run.crossTrack <= maximumRMS);
+        assertTrue(name + " heading over " + maximumHeading + ": " + run, run.headingError <= maximumHeading);
+        assertTrue(name + " average CPU over " + MAXIMUM_AVERAGE_CPU + "ms: " + run, run.averageCPU <= MAXIMUM_AVERAGE_CPU);
+        assertTrue(name + " " + PERCENTILE * 100 + "th percentile tick over " + MAXIMUM_PERCENTILE_TIME + "ms: " + run, run.percentileTime <= MAXIMUM_PERCENTILE_TIME);
+    }
+
+    private Run run(String waypoints, double slack) {
+        Run run = new Run();
+        // Fresh drive stack, its sensors are fed from the plant below
+        Plant plant = new Plant();
+        plant.sense(micros);
+        DifferentialDrive<SpeedController> drive = new DifferentialDrive<>();
+        drive.updateVoltage(BATTERY_VOLTAGE);
+        PathManager manager = new PathManager(drive);
+        manager.createPath(new Point(0, 0, 0, 0), PathManager.parseWaypoints(waypoints), new PathConstraints());
+        List<Point> points = manager.getPoints();
+        run.planned = plannedDuration(points);
+        double limit = run.planned + slack;
+
+        int nearest = 0;
+        double squares = 0;
+        long[] times = new long[(int) Math.ceil(limit / PERIOD) + 1];
+        boolean cpuSupported = THREADS.isCurrentThreadCpuTimeSupported();
+        long cpuStart = cpuSupported ? THREADS.getCurrentThreadCpuTime() : 0;
+        long wallTotal = 0;
+        int tick = 0;
+        boolean finished = false;
+        while (!finished && tick * PERIOD < limit) {
+            // Move the plant through the tick with the outputs of the last one
+            for (int step = 0; step < SUBSTEPS; step++)
+                plant.step(drive.left.getPower() * BATTERY_VOLTAGE, drive.right.getPower() * BATTERY_VOLTAGE, PERIOD / SUBSTEPS);
+            micros += (long) (PERIOD * 1e6);
+            tick++;
+            plant.sense(micros);
+            Clock.replay(micros);
+            // Robot code
+            long start = System.nanoTime();
+            drive.updateOdometry();
+            if (tick % CONTROL_TICKS == 0)
+                finished = manager.followTrajectory(false);
+            long time = System.nanoTime() - start;
+            times[tick - 1] = time;
+            wallTotal += time;
+            run.peakTime = Math.max(run.peakTime, time / 1e6);
+            // Distance of the true pose from the path
+            nearest = nearestSegment(points, nearest, plant.x, plant.y);
+            double error = segmentDistance(points.get(nearest), points.get(Math.min(nearest + 1, points.size() - 1)), plant.x, plant.y);
+            run.maximumCrossTrack = Math.max(run.maximumCrossTrack, error);
+            squares += error * error;
+        }
+        Point last = points.get(points.size() - 1);
+        run.finished = finished;
+        run.time = tick * PERIOD;
+        run.crossTrack = tick > 0 ? Math.sqrt(squares / tick) : 0;
+        run.positionError = Math.hypot(last.getX() - plant.x, last.getY() - plant.y);
+        run.headingError = Math.abs(General.compassify(Math.toDegrees(plant.theta) - last.getAngle()));
+        // Thread CPU time also counts the plant and the error measurement, so it is an upper bound on the robot code's
+        long cpuTotal = cpuSupported ? THREADS.getCurrentThreadCpuTime() - cpuStart : wallTotal;
+        run.averageCPU = tick > 0 ? cpuTotal / 1e6 / tick : 0;
+        if (tick > 0) {
+            long[] sorted = Arrays.copyOf(times, tick);
+            Arrays.sort(sorted);
+            run.percentileTime = sorted[Math.min(tick - 1, (int) Math.ceil(PERCENTILE * tick) - 1)] / 1e6;
+        }
+        return run;
+    }
+
+    // Time the velocity profile plans for the path
+    private static double plannedDuration(List<Point> points) {
+        double duration = 0;
+        for (int i = 1; i < points.size(); i++) {
+            Point previous = points.get(i - 1), point = points.get(i);
+            double average = (Math.abs(previous.getVelocity()) + Math.abs(point.getVelocity())) / 2;
+            if (average > 0)
+                duration += Math.hypot(point.getX() - previous.getX(), point.getY() - previous.getY()) / average;
+        }
+        return duration;
+    }
+
+    // Only searches ahead of the last one, so a path crossing itself (a reversal) is not skipped
+    private static int nearestSegment(List<Point> points, int from, double x, double y) {
+        int best = from;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        int end = Math.min(points.size() - 1, from + SEARCH_WINDOW);
+        for (int i = from; i <= end; i++) {
+            double distance = segmentDistance(points.get(i), points.get(Math.min(i + 1, points.size() - 1)), x, y);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static double segmentDistance(Point first, Point second, double x, double y) {
+        double segmentX = second.getX() - first.getX(), segmentY = second.getY() - first.getY();
+        double length = segmentX * segmentX + segmentY * segmentY;
+        double fraction = length > 0 ? ((x - first.getX()) * segmentX + (y - first.getY()) * segmentY) / length : 0;
+        fraction = Math.max(0, Math.min(1, fraction));
+        return Math.hypot(first.getX() + fraction * segmentX - x, first.getY() + fraction * segmentY - y);
+    }
+
+    // Differential drive with the drive model's dynamics (KS, KV, KA) on each side
+    private class Plant {
+
+        private double x = 0, y = 0, theta = 0;
+        private double leftPosition = 0, rightPosition = 0;
+        private double leftVelocity = 0, rightVelocity = 0;
+
+        private double gyroAngle = 0, gyroOmega = 0;
+        private double sinceFrame = GYRO_FRAME;
+
+        private void step(double leftVoltage, double rightVoltage, double delta) {
+            leftVelocity = side(leftVelocity, leftVoltage, delta);
+            rightVelocity = side(rightVelocity, rightVoltage, delta);
+            leftPosition += leftVelocity * delta;
+            rightPosition += rightVelocity * delta;
+            double linear = (leftVelocity + rightVelocity) / 2;
+            double angular = (rightVelocity - leftVelocity) / DifferentialDrive.WHEEL_DISTANCE;
+            double middle = theta + angular * delta / 2;
+            x += linear * Math.cos(middle) * delta;
+            y += linear * Math.sin(middle) * delta;
+            theta += angular * delta;
+            // A yaw frame sampled a latency ago
+            sinceFrame += delta;
+            if (sinceFrame >= GYRO_FRAME) {
+                sinceFrame -= GYRO_FRAME;
+                gyroOmega = Math.toDegrees(angular);
+                gyroAngle = Math.toDegrees(theta) - gyroOmega * GYRO_LATENCY;
+            }
+        }
+
+        private double side(double velocity, double voltage, double delta) {
+            // Static friction holds the wheel until the voltage overcomes it
+            if (velocity == 0 && Math.abs(voltage) <= DifferentialDrive.KS)
+                return 0;
+            double friction = DifferentialDrive.KS * (velocity != 0 ? Math.signum(velocity) : Math.signum(voltage));
+            double next = velocity + (voltage - friction - DifferentialDrive.KV * velocity) / DifferentialDrive.KA * delta;
+            // Friction stops the wheel rather than reversing it
+            if (velocity != 0 && Math.signum(next) != Math.signum(velocity) && Math.abs(voltage) <= DifferentialDrive.KS)
+                return 0;
+            return next;
+        }
+
+        // Writes what the sensors would read now into the replay channels
+        private void sense(long micros) {
+            sensors[0] = Math.floor(leftPosition / DifferentialDrive.ENCODER_TO_METER);
+            sensors[1] = Math.floor(rightPosition / DifferentialDrive.ENCODER_TO_METER);
+            sensors[2] = leftVelocity / DifferentialDrive.ENCODER_TO_METER;
+            sensors[3] = rightVelocity / DifferentialDrive.ENCODER_TO_METER;
+            sensors[4] = micros;
+            sensors[5] = gyroAngle;
+            sensors[6] = micros;
+            sensors[7] = gyroOmega;
+        }
+    }
+
+    private static class Run {
+
+        private boolean finished;
+        private double planned, time;
+        private double maximumCrossTrack, crossTrack, positionError, headingError;
+        private double averageCPU, percentileTime, peakTime;
+
+        @Override
+        public String toString() {
+            return String.format("time %.2fs (planned %.2fs) cross-track %.3fm max %.3fm RMS, end %.3fm %.1fdeg, CPU %.3fms average, tick %.3fms %.0fth percentile %.3fms peak",
+                    time, planned, maximumCrossTrack, crossTrack, positionError, headingError, averageCPU, percentileTime, PERCENTILE * 100, peakTime);
+        }
+    }
+}